@@ -0,0 +1,239 @@
+package colorserver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the memory held by accepted but unfinished work, per document and in
+ * total. When a new task does not fit, queued tasks of lower or equal
+ * priority are shed to make room, lowest priority and oldest first; the
+ * client is told to ask again later for those.
+ *
+ * Tickets order themselves by priority, then age, for priority queues.
+ */
+public class AdmissionControl {
+    // Text while queued plus colors while running.
+    public static final int BYTES_PER_CHAR = 5;
+    public static final long MAX_BYTES = 64L << 20;
+    public static final long MAX_DOCUMENT_BYTES = 16L << 20;
+
+    public class Ticket implements Runnable, Comparable<Ticket> {
+        private final Object document;
+        private final int priority;
+        private final long sequence = sequences.getAndIncrement();
+        private final long bytes;
+        private Runnable work;
+        private Runnable onShed;
+        private Runnable onDone;
+        private boolean running;
+
+        // document is any object that stands for one document of one client.
+        public Ticket(Object document, int priority, int chars, Runnable work, Runnable onShed) {
+            this.document = document;
+            this.priority = priority;
+            this.bytes = (long) chars * BYTES_PER_CHAR;
+            this.work = work;
+            this.onShed = onShed;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (AdmissionControl.this) {
+                if (work == null) {
+                    // Shed while queued.
+                    return;
+                }
+                task = work;
+                queued.remove(this);
+                running = true;
+            }
+            Runnable done;
+            try {
+                task.run();
+            } finally {
+                done = onDone;
+                release(this);
+            }
+            if (done != null) {
+                done.run();
+            }
+        }
+
+        // Runs after the work, once its bytes no longer count. Set before
+        // the ticket is admitted.
+        public void setOnDone(Runnable onDone) {
+            this.onDone = onDone;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        // Drops this ticket without running onShed if it is still queued,
+        // for when its queue goes away.
+        public void cancel() {
+            synchronized (AdmissionControl.this) {
+                if (queued.remove(this)) {
+                    account(this, -1);
+                    work = null;
+                    onShed = null;
+                }
+            }
+        }
+
+        // Higher priority first, then older first.
+        @Override
+        public int compareTo(Ticket other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxDocumentBytes;
+    private long bytes;
+    private final AtomicLong sequences = new AtomicLong();
+    private final HashMap<Object, Long> documentBytes = new HashMap<Object, Long>();
+    // Oldest first.
+    private final LinkedHashSet<Ticket> queued = new LinkedHashSet<Ticket>();
+
+    public AdmissionControl() {
+        this(MAX_BYTES, MAX_DOCUMENT_BYTES);
+    }
+
+    public AdmissionControl(long maxBytes, long maxDocumentBytes) {
+        this.maxBytes = maxBytes;
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    // True when the ticket may be queued. Sheds queued tickets to make room,
+    // their onShed runs before this returns. Nothing is shed for a ticket
+    // that would not fit anyway, e.g. because of work already running.
+    public boolean admit(Ticket ticket) {
+        LinkedHashSet<Ticket> shed = new LinkedHashSet<Ticket>();
+        boolean admitted;
+        synchronized (this) {
+            long documentLimit = maxDocumentBytes - ticket.bytes;
+            if (documentBytes(ticket.document) - sheddable(ticket, true) > documentLimit
+                    || bytes - sheddable(ticket, false) > maxBytes - ticket.bytes) {
+                return false;
+            }
+            while (documentBytes(ticket.document) > documentLimit) {
+                Ticket candidate = firstToShed(ticket, true);
+                if (candidate == null) {
+                    break;
+                }
+                shed.add(candidate);
+            }
+            while (bytes > maxBytes - ticket.bytes) {
+                Ticket candidate = firstToShed(ticket, false);
+                if (candidate == null) {
+                    break;
+                }
+                shed.add(candidate);
+            }
+            admitted = bytes <= maxBytes - ticket.bytes && documentBytes(ticket.document) <= documentLimit;
+            if (admitted) {
+                queued.add(ticket);
+                account(ticket, 1);
+            }
+            for (Ticket candidate : shed) {
+                candidate.work = null;
+            }
+        }
+        for (Ticket candidate : shed) {
+            candidate.onShed.run();
+            candidate.onShed = null;
+        }
+        return admitted;
+    }
+
+    private static boolean mayShed(Ticket candidate, Ticket newcomer, boolean sameDocument) {
+        return candidate.priority <= newcomer.priority
+                && (!sameDocument || candidate.document == newcomer.document);
+    }
+
+    // Bytes that shedding could free for newcomer at most.
+    private long sheddable(Ticket newcomer, boolean sameDocument) {
+        long total = 0;
+        for (Ticket candidate : queued) {
+            if (mayShed(candidate, newcomer, sameDocument)) {
+                total += candidate.bytes;
+            }
+        }
+        return total;
+    }
+
+    // Lowest priority, then oldest queued ticket that may make room for
+    // newcomer, it is taken out of the queue.
+    private Ticket firstToShed(Ticket newcomer, boolean sameDocument) {
+        Ticket first = null;
+        for (Ticket candidate : queued) {
+            if (!mayShed(candidate, newcomer, sameDocument)) {
+                continue;
+            }
+            if (first == null || candidate.priority < first.priority) {
+                first = candidate;
+            }
+        }
+        if (first != null) {
+            queued.remove(first);
+            account(first, -1);
+        }
+        return first;
+    }
+
+    // Drops the queued work of a document without running onShed, the
+    // client does not want it any more. Running work finishes.
+    public void cancel(Object document) {
+        synchronized (this) {
+            for (Iterator<Ticket> it = queued.iterator(); it.hasNext(); ) {
+                Ticket ticket = it.next();
+                if (ticket.document == document) {
+                    it.remove();
+                    account(ticket, -1);
+                    ticket.work = null;
+                    ticket.onShed = null;
+                }
+            }
+        }
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    // What the document may still queue before its own work gets shed.
+    public synchronized long documentRoom(Object document) {
+        return Math.max(0, maxDocumentBytes - documentBytes(document));
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.running) {
+            ticket.running = false;
+            ticket.work = null;
+            ticket.onShed = null;
+            ticket.onDone = null;
+            account(ticket, -1);
+        }
+    }
+
+    private long documentBytes(Object document) {
+        return documentBytes.getOrDefault(document, 0L);
+    }
+
+    private void account(Ticket ticket, int sign) {
+        bytes += sign * ticket.bytes;
+        long left = documentBytes(ticket.document) + sign * ticket.bytes;
+        if (left == 0) {
+            documentBytes.remove(ticket.document);
+        } else {
+            documentBytes.put(ticket.document, left);
+        }
+    }
+}
@@ -2,38 +2,174 @@ package colorserver;
 
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 import java.net.*;
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ColorServer {
-    static {
-        System.loadLibrary("libColor");
-    }
-
     private int connectionPort;
     private Socket clientSocket;
     private DataOutputStream out;
     private DataInputStream in;
     private Vector<String> documentPaths;
     private Vector<AtomicLong> currentRevisions;
+    private Highlighter highlighter;
+    private volatile boolean closed;
+    // Documents sent as edits, only touched by the reading thread.
+    private HashMap<String, DocumentMirror> mirrors = new HashMap<String, DocumentMirror>();
+    // Path to the request id of the last batch that edited it.
+    private HashMap<String, Long> editedMirrors = new HashMap<String, Long>();
+    private int deferredMessages;
+    // Set by MESSAGE_PRIORITY, PRIORITY_NORMAL for documents not named there.
+    // Read by workers handing out more mirror chunks too.
+    private ConcurrentHashMap<String, Integer> priorities = new ConcurrentHashMap<String, Integer>();
+    private volatile int format = FORMAT_RGB;
+    // Set by MESSAGE_TRACE, tags the events of the work that follows.
+    private long requestId;
+    private AdmissionControl admission = new AdmissionControl();
+    private final static int MAX_DEFERRED_MESSAGES = 256;
     public final static int MESSAGE_REQUEST = 0;
     public final static int MESSAGE_CLOSE = 1;
+    // Edit-delta messages: the server keeps a mirror of the document and
+    // decides itself which parts need new colors.
+    public final static int MESSAGE_OPEN = 2;
+    public final static int MESSAGE_INSERT = 3;
+    public final static int MESSAGE_REMOVE = 4;
+    public final static int MESSAGE_HIGHLIGHT = 5;
+    // Path and priority, applies to the document's work from then on.
+    public final static int MESSAGE_PRIORITY = 6;
+    // Background work only runs when nothing more urgent is queued and is
+    // the first to go when memory runs short.
+    public final static int PRIORITY_BACKGROUND = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    // The document the user is looking at.
+    public final static int PRIORITY_HIGH = 2;
+    // Picks the answer format for the rest of the connection.
+    public final static int MESSAGE_FORMAT = 7;
+    public final static int FORMAT_RGB = 0;
+    public final static int FORMAT_TOKENS = 1;
+    // Path of a document the client closed, its queued work is dropped.
+    public final static int MESSAGE_CLOSE_DOCUMENT = 8;
+    // Request id (long) for the messages that follow, see Tracing. Their
+    // answers echo it after the revision.
+    public final static int MESSAGE_TRACE = 9;
+    public final static int CHUNK_SIZE = 5000;
+    // Sent instead of the color count when the server dropped the work,
+    // followed by the number of chars to ask for again later.
+    public final static int RESPONSE_RETRY = -1;
+    // FORMAT_TOKENS: sent instead of the color count, followed by the span
+    // count and per span its length and token type. Spans follow each other
+    // from start on, the client maps the types to colors itself.
+    public final static int RESPONSE_TOKENS = -2;
+    // The engines' fixed colors stand for these: black, blue, white.
+    public final static int TOKEN_TEXT = 0;
+    public final static int TOKEN_NUMBER = 1;
+    public final static int TOKEN_WHITESPACE = 2;
+    // Mirror chunks when a chunk is colored on several cores anyway.
+    public final static int PARALLEL_CHUNK_SIZE = 64 * 1024;
+    // Written first on every connection, whichever side connected, so the
+    // editor knows it talks to a ColorServer that speaks its protocol.
+    public final static int HELLO = 0x434F4C53;
+    // 2: answers carry the request id after the revision.
+    public final static int PROTOCOL_VERSION = 2;
+    // Connecting backs off from the first to the longest delay and gives
+    // up when the editor does not listen within the timeout.
+    private final static long FIRST_RETRY_MILLIS = 10;
+    private final static long MAX_RETRY_MILLIS = 500;
+    private final static long CONNECT_TIMEOUT_MILLIS = 60000;
 
     public ColorServer(int port) {
+        this(port, createHighlighter(System.getProperty("colorserver.highlighter")));
+    }
+
+    public ColorServer(int port, Highlighter highlighter) {
         connectionPort = port;
+        this.highlighter = highlighter;
         this.currentRevisions = new Vector<AtomicLong>();
         this.documentPaths = new Vector<String>();
     }
 
-    boolean connect(String ip) {
-        try {
-            clientSocket = new Socket(ip, connectionPort);
-            return true;
-        } catch (IOException ex) {
-            return false;
+    // In-process mode, requests and answers go through the given streams.
+    public ColorServer(InputStream in, OutputStream out, Highlighter highlighter) {
+        this(0, highlighter);
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+    }
+
+    // colorserver.parallel=true colors big chunks on all cores,
+    // colorserver.hedge=true retries chunks that take unusually long.
+    public static Highlighter createHighlighter(String name) {
+        return withOptions(createEngine(name));
+    }
+
+    static Highlighter withOptions(Highlighter engine) {
+        Highlighter highlighter = engine;
+        if (Boolean.getBoolean("colorserver.parallel")) {
+            highlighter = new ParallelHighlighter(highlighter);
+        }
+        if (Boolean.getBoolean("colorserver.hedge")) {
+            highlighter = new HedgedHighlighter(highlighter);
+        }
+        return highlighter;
+    }
+
+    static Highlighter createEngine(String name) {
+        if ("vector".equals(name)) {
+            return new VectorHighlighter();
+        }
+        if ("foreign".equals(name)) {
+            return new ForeignHighlighter();
+        }
+        return new NativeHighlighter();
+    }
+
+    // Tries until the editor accepts, waiting longer after each failure
+    // instead of spinning. Null when the editor never shows up.
+    static <T> T connectWithBackoff(Callable<T> connect) {
+        long delay = FIRST_RETRY_MILLIS;
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                return connect.call();
+            } catch (Exception ex) {
+                if (System.currentTimeMillis() + delay > deadline) {
+                    System.out.println("Can't connect to the editor, ex = " + ex.getMessage());
+                    return null;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                return null;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    void writeHello() throws IOException {
+        out.writeInt(HELLO);
+        out.writeInt(PROTOCOL_VERSION);
+        out.flush();
+    }
+
+    // The other end of writeHello.
+    static void readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != HELLO) {
+            throw new IOException("Not a ColorServer");
+        }
+        int version = in.readInt();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("ColorServer speaks protocol " + version + ", not " + PROTOCOL_VERSION);
         }
     }
 
@@ -48,19 +184,61 @@ public class ColorServer {
         return true;
     }
 
-    private void makeRequest(int index, long revision, int start, String text) {
-        byte result[] = new byte[text.length() * 3];
-        requestColors(revision, text, result);
+    private void makeRequest(long requestId, int index, long revision, int start, String text) {
+        String path = documentPaths.elementAt(index);
+        byte result[] = highlight(requestId, path, revision, start, text);
         if (revision < currentRevisions.elementAt(index).get()) {
             return;
         }
+        if (result == null) {
+            writeRetry(requestId, path, revision, start, text.length());
+            return;
+        }
+        writeColors(requestId, path, revision, start, result);
+    }
+
+    // False when the document changed meanwhile and the colors were dropped.
+    private boolean highlightMirror(long requestId, String path, DocumentMirror mirror, long revision, int start,
+            String text) {
+        byte result[] = highlight(requestId, path, revision, start, text);
+        if (result == null) {
+            if (mirror.unschedule(revision, start, start + text.length())) {
+                writeRetry(requestId, path, revision, start, text.length());
+            }
+            return false;
+        }
+        if (!mirror.completeIfCurrent(revision, start, start + text.length())) {
+            return false;
+        }
+        writeColors(requestId, path, revision, start, result);
+        return true;
+    }
+
+    // Null when the worker was interrupted, the colors may be incomplete.
+    private byte[] highlight(long requestId, String path, long revision, int start, String text) {
+        Tracing.Highlight event = new Tracing.Highlight();
+        event.begin();
+        byte result[] = new byte[text.length() * 3];
+        highlighter.requestColors(revision, text, result);
+        event.requestId = requestId;
+        event.path = path;
+        event.revision = revision;
+        event.start = start;
+        event.chars = text.length();
+        event.commit();
+        // The engine may have stopped half way, the flag stays set for the worker.
+        return Thread.currentThread().isInterrupted() ? null : result;
+    }
+
+    private void writeRetry(long requestId, String path, long revision, int start, int length) {
         synchronized(this) {
             try {
-                out.writeUTF(documentPaths.elementAt(index));
+                out.writeUTF(path);
                 out.writeLong(revision);
+                out.writeLong(requestId);
                 out.writeInt(start);
-                out.writeInt(result.length);
-                out.write(result);
+                out.writeInt(RESPONSE_RETRY);
+                out.writeInt(length);
                 out.flush();
             } catch (IOException ex) {
                 System.out.println("Writing the answer failed, ex = " + ex.getMessage());
@@ -68,43 +246,159 @@ public class ColorServer {
         }
     }
 
+    // Queues work unless too much is pending already, older work may be
+    // dropped to make room. onShed runs for whatever does not get done.
+    // requestId is the one the work answers, for its events.
+    private void submit(long requestId, Executor pool, String path, Object document, int length, Runnable work,
+            Runnable onShed) {
+        submit(requestId, pool, path, document, length, work, onShed, null);
+    }
+
+    // onDone runs after work, once its bytes are given back.
+    private void submit(long requestId, Executor pool, String path, Object document, int length, Runnable work,
+            Runnable onShed, Runnable onDone) {
+        int priority = priorities.getOrDefault(path, PRIORITY_NORMAL);
+        Tracing.Queued queued = new Tracing.Queued();
+        queued.requestId = requestId;
+        queued.path = path;
+        queued.chars = length;
+        queued.priority = priority;
+        Tracing.Shed shed = new Tracing.Shed();
+        shed.requestId = requestId;
+        shed.path = path;
+        shed.chars = length;
+        queued.begin();
+        AdmissionControl.Ticket ticket = admission.new Ticket(document, priority, length, () -> {
+            queued.commit();
+            work.run();
+        }, () -> {
+            shed.commit();
+            onShed.run();
+        });
+        ticket.setOnDone(onDone);
+        if (admission.admit(ticket)) {
+            try {
+                pool.execute(ticket);
+            } catch (RejectedExecutionException ex) {
+                // The connection is closing.
+                ticket.cancel();
+            }
+        } else {
+            shed.commit();
+            onShed.run();
+        }
+    }
+
+    // Several servers sharing one limit, see SelectorServer.
+    void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    private void writeColors(long requestId, String path, long revision, int start, byte[] result) {
+        Tracing.Answer event = new Tracing.Answer();
+        event.begin();
+        synchronized(this) {
+            try {
+                out.writeUTF(path);
+                out.writeLong(revision);
+                out.writeLong(requestId);
+                out.writeInt(start);
+                if (format == FORMAT_TOKENS) {
+                    writeTokens(result);
+                } else {
+                    out.writeInt(result.length);
+                    out.write(result);
+                }
+                out.flush();
+            } catch (IOException ex) {
+                System.out.println("Writing the answer failed, ex = " + ex.getMessage());
+            }
+        }
+        event.requestId = requestId;
+        event.path = path;
+        event.revision = revision;
+        event.start = start;
+        event.chars = result.length / 3;
+        event.commit();
+    }
+
+    // Runs of equal token type, 5 bytes each instead of 3 per char.
+    private void writeTokens(byte[] colors) throws IOException {
+        int count = colors.length / 3;
+        int[] lengths = new int[count];
+        byte[] types = new byte[count];
+        int spans = 0;
+        for (int i = 0; i < count; ++i) {
+            int type = tokenType(colors, i);
+            if (spans > 0 && types[spans - 1] == type) {
+                ++lengths[spans - 1];
+            } else {
+                lengths[spans] = 1;
+                types[spans] = (byte) type;
+                ++spans;
+            }
+        }
+        out.writeInt(RESPONSE_TOKENS);
+        out.writeInt(spans);
+        for (int i = 0; i < spans; ++i) {
+            out.writeInt(lengths[i]);
+            out.writeByte(types[i]);
+        }
+    }
+
+    static int tokenType(byte[] colors, int index) {
+        int rgb = ((colors[index * 3] & 0xFF) << 16) | ((colors[index * 3 + 1] & 0xFF) << 8)
+                | (colors[index * 3 + 2] & 0xFF);
+        if (rgb == 0x0000FF) {
+            return TOKEN_NUMBER;
+        }
+        return rgb == 0xFFFFFF ? TOKEN_WHITESPACE : TOKEN_TEXT;
+    }
+
     public void start() {
-        while (!connect("127.0.0.1")) {}
-        if (!initStreams()) {
+        clientSocket = connectWithBackoff(() -> new Socket("127.0.0.1", connectionPort));
+        if (clientSocket == null || !initStreams()) {
             return;
         }
-        ExecutorService pool = Executors.newFixedThreadPool(4);
-
         try {
             clientSocket.setSoTimeout(2000);
         } catch (SocketException ex) {
             Logger.getLogger(ColorServer.class.getName()).log(Level.SEVERE, null, ex);
         }
-        while (!clientSocket.isClosed()) {
-            int start;
-            int index;
-            String text;
+        greetAndServe();
+    }
+
+    // For the editor that launched this server.
+    private void greetAndServe() {
+        try {
+            writeHello();
+        } catch (IOException ex) {
+            System.out.println("Handshake failed, ex = " + ex.getMessage());
+            return;
+        }
+        serve();
+    }
+
+    private boolean isClosed() {
+        return closed || (clientSocket != null && clientSocket.isClosed());
+    }
+
+    // Reads requests until the client says goodbye or the connection breaks.
+    public void serve() {
+        // Tickets order themselves, most urgent first.
+        ExecutorService pool = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+
+        while (!isClosed()) {
             try {
-                int messageType = in.readInt();
-                if (messageType == MESSAGE_CLOSE) {
+                if (!handleMessage(in.readInt(), in, pool)) {
                     break;
                 }
-                if (messageType != MESSAGE_REQUEST) {
-                    // Add here if we support one more message kind.
-                    break;
+                // Edits arriving back to back are highlighted once, after the last one.
+                if (in.available() == 0 || ++deferredMessages > MAX_DEFERRED_MESSAGES) {
+                    scheduleEditedMirrors(pool);
+                    deferredMessages = 0;
                 }
-
-                String documentPath = in.readUTF();
-                index = documentPaths.indexOf(documentPath);
-                if (index < 0) {
-                    documentPaths.addElement(documentPath);
-                    currentRevisions.addElement(new AtomicLong(in.readLong()));
-                    index = currentRevisions.size() - 1;
-                } else {
-                    currentRevisions.elementAt(index).set(in.readLong());
-                }
-                start = in.readInt();
-                text = in.readUTF();
             } catch (SocketTimeoutException ex) {
                 System.out.println("Timeout");
                 continue;
@@ -112,33 +406,266 @@ public class ColorServer {
                 System.out.println("Read failed, ex = " + ex.getMessage());
                 break;
             }
-
-            final long r = currentRevisions.elementAt(index).get();
-            final int i = index;
-            updateRevision(r);
-            pool.execute(() -> {
-                makeRequest(i, r, start, text);
-            });
         }
         pool.shutdown();
         stopConnection();
     }
 
+    // Reads the rest of one message and queues its work on pool. Returns false
+    // when the client says goodbye or sends something unknown.
+    boolean handleMessage(int messageType, DataInputStream in, Executor pool) throws IOException {
+        if (messageType == MESSAGE_CLOSE) {
+            return false;
+        }
+        if (messageType == MESSAGE_TRACE) {
+            requestId = in.readLong();
+            return true;
+        }
+        Tracing.Received received = new Tracing.Received();
+        received.requestId = requestId;
+        received.messageType = messageType;
+        received.commit();
+        if (messageType == MESSAGE_REQUEST) {
+            readRequest(in, pool);
+        } else if (messageType >= MESSAGE_OPEN && messageType <= MESSAGE_HIGHLIGHT) {
+            readMirrorMessage(messageType, in);
+        } else if (messageType == MESSAGE_FORMAT) {
+            format = in.readInt();
+        } else if (messageType == MESSAGE_PRIORITY) {
+            setPriority(in.readUTF(), in.readInt());
+        } else if (messageType == MESSAGE_CLOSE_DOCUMENT) {
+            closeDocument(in.readUTF());
+        } else {
+            // Add here if we support one more message kind.
+            return false;
+        }
+        return true;
+    }
+
+    private void setPriority(String documentPath, int priority) {
+        int old = priorities.getOrDefault(documentPath, PRIORITY_NORMAL);
+        priorities.put(documentPath, priority);
+        DocumentMirror mirror = mirrors.get(documentPath);
+        if (priority > old && mirror != null) {
+            // Queued chunks are queued again at the new priority.
+            admission.cancel(mirror);
+            mirror.unscheduleAll();
+            editedMirrors.put(documentPath, requestId);
+        }
+    }
+
+    private void closeDocument(String documentPath) {
+        priorities.remove(documentPath);
+        editedMirrors.remove(documentPath);
+        DocumentMirror mirror = mirrors.remove(documentPath);
+        if (mirror != null) {
+            mirror.close();
+            admission.cancel(mirror);
+        }
+        int index = documentPaths.indexOf(documentPath);
+        if (index >= 0) {
+            AtomicLong revision = currentRevisions.elementAt(index);
+            admission.cancel(revision);
+            // Running work finds itself outdated and answers nothing. A new
+            // request for the path sets the revision again.
+            revision.set(Long.MAX_VALUE);
+        }
+    }
+
+    private void readRequest(DataInputStream in, Executor pool) throws IOException {
+        String documentPath = in.readUTF();
+        int index = documentPaths.indexOf(documentPath);
+        if (index < 0) {
+            documentPaths.addElement(documentPath);
+            currentRevisions.addElement(new AtomicLong(in.readLong()));
+            index = currentRevisions.size() - 1;
+        } else {
+            currentRevisions.elementAt(index).set(in.readLong());
+        }
+        final int start = in.readInt();
+        final String text = in.readUTF();
+
+        final long r = currentRevisions.elementAt(index).get();
+        final int i = index;
+        final long id = requestId;
+        highlighter.updateRevision(r);
+        submit(id, pool, documentPath, currentRevisions.elementAt(index), text.length(), () -> {
+            makeRequest(id, i, r, start, text);
+        }, () -> {
+            writeRetry(id, documentPath, r, start, text.length());
+        });
+    }
+
+    private void readMirrorMessage(int messageType, DataInputStream in) throws IOException {
+        String documentPath = in.readUTF();
+        long revision = in.readLong();
+        DocumentMirror mirror = mirrors.get(documentPath);
+        if (messageType == MESSAGE_OPEN) {
+            String text = readLongUTF(in);
+            if (mirror == null) {
+                mirrors.put(documentPath, new DocumentMirror(revision, text));
+            } else {
+                admission.cancel(mirror);
+                mirror.open(revision, text);
+            }
+            return;
+        }
+        int offset = in.readInt();
+        String inserted = messageType == MESSAGE_INSERT ? readLongUTF(in) : null;
+        // Removed length, or the end offset for MESSAGE_HIGHLIGHT.
+        int value = messageType == MESSAGE_INSERT ? 0 : in.readInt();
+        if (mirror == null) {
+            System.out.println("Edit for a document that was never opened: " + documentPath);
+            return;
+        }
+        try {
+            if (messageType == MESSAGE_INSERT) {
+                mirror.insert(revision, offset, inserted);
+                // Queued chunks are for the old text, they are handed out again.
+                admission.cancel(mirror);
+            } else if (messageType == MESSAGE_REMOVE) {
+                mirror.remove(revision, offset, value);
+                admission.cancel(mirror);
+            } else {
+                mirror.addDirty(offset, value);
+            }
+        } catch (IllegalArgumentException ex) {
+            // The copy no longer matches the editor's, drop it until it is opened again.
+            System.out.println("Bad edit for " + documentPath + ", ex = " + ex.getMessage());
+            closeDocument(documentPath);
+            return;
+        }
+        editedMirrors.put(documentPath, requestId);
+    }
+
+    void scheduleEditedMirrors(Executor pool) {
+        for (Map.Entry<String, Long> edited : editedMirrors.entrySet()) {
+            String path = edited.getKey();
+            DocumentMirror mirror = mirrors.get(path);
+            highlighter.updateRevision(mirror.getRevision());
+            // Edits of several batches are colored together, the answers
+            // belong to the last of them.
+            scheduleMirror(pool, path, mirror, edited.getValue());
+        }
+        editedMirrors.clear();
+    }
+
+    // Hands out dirty chunks as far as the document's share of the memory
+    // limit goes, so a big document never sheds its own queued work. Each
+    // finished chunk hands out more. Runs on the reading thread and workers.
+    private void scheduleMirror(Executor pool, String path, DocumentMirror mirror, long id) {
+        int chunkSize = Boolean.getBoolean("colorserver.parallel") ? PARALLEL_CHUNK_SIZE : CHUNK_SIZE;
+        // The budget check and the admission must not interleave with another
+        // thread handing out chunks of the same document. Not the mirror's
+        // own lock: admitting runs other documents' onShed, which take theirs.
+        synchronized (mirror.handOutLock) {
+            long revision = mirror.getRevision();
+            int room = (int) Math.min(Integer.MAX_VALUE,
+                    admission.documentRoom(mirror) / AdmissionControl.BYTES_PER_CHAR);
+            for (int[] chunk : mirror.takeChunks(chunkSize, room)) {
+                String text = mirror.getText(chunk[0], chunk[1]);
+                boolean[] current = new boolean[1];
+                submit(id, pool, path, mirror, text.length(), () -> {
+                    current[0] = highlightMirror(id, path, mirror, revision, chunk[0], text);
+                }, () -> {
+                    if (mirror.unschedule(revision, chunk[0], chunk[1])) {
+                        writeRetry(id, path, revision, chunk[0], text.length());
+                    }
+                }, () -> {
+                    // After an edit the reading thread hands out the new text.
+                    if (current[0]) {
+                        scheduleMirror(pool, path, mirror, id);
+                    }
+                });
+            }
+        }
+    }
+
+    // Whole documents and pastes do not fit writeUTF's 64K limit.
+    static String readLongUTF(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     public void stopConnection() {
         try {
+            closed = true;
             in.close();
             out.close();
-            clientSocket.close();
+            if (clientSocket != null) {
+                clientSocket.close();
+            }
         } catch (IOException ex) {
             System.out.println("Closing connection failed, ex = " + ex.getMessage());
         }
     }
 
-    private static native void requestColors(long revision, String text, byte[] result);
-    private static native void updateRevision(long revision);
+    // Entry point for the editor's embedded mode, looked up by reflection.
+    // Greets too, the editor's jar and the loaded ColorServer.jar may differ.
+    public static void runEmbedded(InputStream in, OutputStream out, String highlighterName) {
+        new ColorServer(in, out, createHighlighter(highlighterName)).greetAndServe();
+    }
+
+    // Maps the editor's ring file and serves requests through it.
+    public static void runSharedMemory(Path file, Highlighter highlighter) throws IOException {
+        MappedByteBuffer buffer = SharedMemoryRing.map(file);
+        SharedMemoryRing toServer = SharedMemoryRing.toServer(buffer, false);
+        SharedMemoryRing fromServer = SharedMemoryRing.fromServer(buffer, false);
+        SharedMemoryRing.attach(buffer);
+        new ColorServer(toServer.inputStream(), fromServer.outputStream(), highlighter).greetAndServe();
+    }
+
+    // Connects to the editor's Unix domain socket and serves requests through it.
+    public static void runUnixSocket(Path socketPath, Highlighter highlighter) {
+        SocketChannel channel = connectWithBackoff(
+                () -> SocketChannel.open(UnixDomainSocketAddress.of(socketPath)));
+        if (channel == null) {
+            return;
+        }
+        new ColorServer(Channels.newInputStream(channel), Channels.newOutputStream(channel),
+                highlighter).greetAndServe();
+    }
 
-    public static void main(String[] args) {
-        new ColorServer(Integer.parseInt(args[args.length - 1])).start();
+    // Usage: ColorServer [--highlighter=native|vector|foreign] [--parallel] [--hedge] [--transport=tcp|unix|shm] port|path
+    //        ColorServer --listen [--highlighter=native|vector|foreign] [--parallel] [--hedge] [--threads=n] port
+    public static void main(String[] args) throws IOException {
+        String highlighterName = System.getProperty("colorserver.highlighter");
+        String transport = "tcp";
+        boolean listen = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length - 1; ++i) {
+            if (args[i].equals("--listen")) {
+                listen = true;
+            } else if (args[i].equals("--parallel")) {
+                System.setProperty("colorserver.parallel", "true");
+            } else if (args[i].equals("--hedge")) {
+                System.setProperty("colorserver.hedge", "true");
+            } else if (args[i].startsWith("--threads=")) {
+                threads = Integer.parseInt(args[i].substring("--threads=".length()));
+            } else if (args[i].startsWith("--highlighter=")) {
+                highlighterName = args[i].substring("--highlighter=".length());
+            } else if (args[i].startsWith("--transport=")) {
+                transport = args[i].substring("--transport=".length());
+            }
+        }
+        String address = args[args.length - 1];
+        if (listen) {
+            // One shared service, editors connect to it.
+            SelectorServer server = new SelectorServer(Integer.parseInt(address), highlighterName, threads);
+            System.out.println("Listening on port " + server.getPort());
+            server.run();
+            return;
+        }
+        if (transport.equals("shm")) {
+            runSharedMemory(Paths.get(address), createHighlighter(highlighterName));
+            return;
+        }
+        if (transport.equals("unix")) {
+            runUnixSocket(Paths.get(address), createHighlighter(highlighterName));
+            return;
+        }
+        new ColorServer(Integer.parseInt(address), createHighlighter(highlighterName)).start();
     }
 
 }
@@ -0,0 +1,269 @@
+package colorserver;
+
+import java.util.ArrayList;
+
+/**
+ * Server-side copy of an editor document kept up to date from insert/remove
+ * messages. The text is a piece table over the opening text and an append
+ * buffer. An edit costs its own size plus a walk over the pieces; typing on
+ * where the last insert ended grows that insert's piece instead of adding
+ * one, so there are about as many pieces as places edited. It also tracks
+ * the ranges still waiting for colors at the current revision.
+ *
+ * Edits and reads of the text come from the reading thread only, workers
+ * only call completeIfCurrent, unschedule, takeChunks and getText, the
+ * latter two under the mirror's lock.
+ */
+public class DocumentMirror {
+    private static class Piece {
+        boolean added;
+        int start;
+        int length;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private String original;
+    private final StringBuilder added = new StringBuilder();
+    private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+    private int length;
+    private long revision;
+    // Sorted, disjoint [start, end) pairs: text without colors at the current
+    // revision, and the part of it already handed to a worker.
+    private final ArrayList<int[]> dirty = new ArrayList<int[]>();
+    private final ArrayList<int[]> scheduled = new ArrayList<int[]>();
+    // The client closed the document, no more chunks are handed out.
+    private boolean closed;
+    // Held while chunks are handed out and admitted, see ColorServer. Never
+    // taken while holding the mirror itself.
+    final Object handOutLock = new Object();
+
+    public DocumentMirror(long revision, String text) {
+        load(revision, text);
+    }
+
+    // Replaces everything, e.g. when the editor reconnects.
+    public synchronized void open(long revision, String text) {
+        load(revision, text);
+    }
+
+    private void load(long revision, String text) {
+        this.revision = revision;
+        original = text;
+        added.setLength(0);
+        pieces.clear();
+        if (!text.isEmpty()) {
+            pieces.add(new Piece(false, 0, text.length()));
+        }
+        length = text.length();
+        dirty.clear();
+        scheduled.clear();
+    }
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Throws IllegalArgumentException for an offset outside the text.
+    public synchronized void insert(long revision, int offset, String text) {
+        if (offset < 0 || offset > length) {
+            throw new IllegalArgumentException("Insert at " + offset + " of " + length + " chars");
+        }
+        this.revision = revision;
+        int index = split(offset);
+        Piece previous = index > 0 ? pieces.get(index - 1) : null;
+        if (previous != null && previous.added && previous.start + previous.length == added.length()) {
+            // Continues the last insert.
+            previous.length += text.length();
+        } else {
+            pieces.add(index, new Piece(true, added.length(), text.length()));
+        }
+        added.append(text);
+        length += text.length();
+        // Work handed out before this edit is stale now.
+        scheduled.clear();
+        shift(dirty, offset, text.length());
+        add(dirty, offset, offset + text.length());
+    }
+
+    // Throws IllegalArgumentException for a range outside the text.
+    public synchronized void remove(long revision, int offset, int count) {
+        if (offset < 0 || count < 0 || offset > length - count) {
+            throw new IllegalArgumentException("Remove " + count + " at " + offset + " of " + length + " chars");
+        }
+        this.revision = revision;
+        int first = split(offset);
+        int last = split(offset + count);
+        pieces.subList(first, last).clear();
+        length -= count;
+        scheduled.clear();
+        remove(dirty, offset, offset + count);
+        shift(dirty, offset + count, -count);
+    }
+
+    public synchronized String getText(int start, int end) {
+        StringBuilder result = new StringBuilder(end - start);
+        int pieceStart = 0;
+        for (Piece piece : pieces) {
+            int pieceEnd = pieceStart + piece.length;
+            if (pieceEnd > start && pieceStart < end) {
+                int from = piece.start + Math.max(start, pieceStart) - pieceStart;
+                int to = piece.start + Math.min(end, pieceEnd) - pieceStart;
+                if (piece.added) {
+                    result.append(added, from, to);
+                } else {
+                    result.append(original, from, to);
+                }
+            }
+            if (pieceEnd >= end) {
+                break;
+            }
+            pieceStart = pieceEnd;
+        }
+        return result.toString();
+    }
+
+    // Makes offset a piece boundary, returns the index of the piece starting there.
+    private int split(int offset) {
+        int pieceStart = 0;
+        for (int i = 0; i < pieces.size(); ++i) {
+            Piece piece = pieces.get(i);
+            if (pieceStart == offset) {
+                return i;
+            }
+            if (offset < pieceStart + piece.length) {
+                int skip = offset - pieceStart;
+                pieces.add(i + 1, new Piece(piece.added, piece.start + skip, piece.length - skip));
+                piece.length = skip;
+                return i + 1;
+            }
+            pieceStart += piece.length;
+        }
+        return pieces.size();
+    }
+
+    public synchronized void addDirty(int start, int end) {
+        add(dirty, Math.max(0, start), Math.min(end, length));
+    }
+
+    synchronized int pieceCount() {
+        return pieces.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+    }
+
+    public synchronized ArrayList<int[]> takeChunks(int maxSize) {
+        return takeChunks(maxSize, Integer.MAX_VALUE);
+    }
+
+    // Dirty chunks of at most maxSize that are not being highlighted yet, no
+    // more than maxChars in all; they count as being highlighted from now on.
+    // The rest waits for a later call.
+    public synchronized ArrayList<int[]> takeChunks(int maxSize, int maxChars) {
+        ArrayList<int[]> chunks = new ArrayList<int[]>();
+        if (closed) {
+            return chunks;
+        }
+        ArrayList<int[]> pending = new ArrayList<int[]>();
+        for (int[] range : dirty) {
+            pending.add(range.clone());
+        }
+        for (int[] range : scheduled) {
+            remove(pending, range[0], range[1]);
+        }
+        int left = maxChars;
+        for (int[] range : pending) {
+            for (int start = range[0]; start < range[1] && left > 0; ) {
+                int end = Math.min(range[1], start + Math.min(maxSize, left));
+                chunks.add(new int[] { start, end });
+                add(scheduled, start, end);
+                left -= end - start;
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    // Marks a highlighted chunk as done, unless the document changed meanwhile.
+    public synchronized boolean completeIfCurrent(long revision, int start, int end) {
+        if (revision != this.revision) {
+            return false;
+        }
+        remove(dirty, start, end);
+        remove(scheduled, start, end);
+        return true;
+    }
+
+    // Gives a chunk back when it was dropped before being highlighted. False
+    // when the document changed meanwhile and nobody waits for the chunk.
+    public synchronized boolean unschedule(long revision, int start, int end) {
+        if (revision != this.revision) {
+            return false;
+        }
+        remove(scheduled, start, end);
+        return true;
+    }
+
+    // Hands everything out again, its queued work was dropped.
+    public synchronized void unscheduleAll() {
+        scheduled.clear();
+    }
+
+    private static void add(ArrayList<int[]> ranges, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        remove(ranges, start, end);
+        int index = 0;
+        while (index < ranges.size() && ranges.get(index)[0] < start) {
+            ++index;
+        }
+        ranges.add(index, new int[] { start, end });
+        // Join with touching neighbours.
+        if (index + 1 < ranges.size() && ranges.get(index + 1)[0] == end) {
+            ranges.get(index)[1] = ranges.remove(index + 1)[1];
+        }
+        if (index > 0 && ranges.get(index - 1)[1] == start) {
+            ranges.get(index - 1)[1] = ranges.remove(index)[1];
+        }
+    }
+
+    private static void remove(ArrayList<int[]> ranges, int start, int end) {
+        ArrayList<int[]> kept = new ArrayList<int[]>();
+        for (int[] range : ranges) {
+            if (range[1] <= start || range[0] >= end) {
+                kept.add(range);
+                continue;
+            }
+            if (range[0] < start) {
+                kept.add(new int[] { range[0], start });
+            }
+            if (range[1] > end) {
+                kept.add(new int[] { end, range[1] });
+            }
+        }
+        ranges.clear();
+        ranges.addAll(kept);
+    }
+
+    private static void shift(ArrayList<int[]> ranges, int from, int shift) {
+        for (int[] range : ranges) {
+            if (range[0] >= from) {
+                range[0] += shift;
+            }
+            if (range[1] > from) {
+                range[1] += shift;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package colorserver;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Highlighter backed by libColor through java.lang.foreign, calls the plain C
+ * entry points from color_ffi.h without any JNI string or array conversion.
+ * java.lang.foreign is final in JDK 22, on JDK 21 it is a preview API and
+ * the server has to be built and run with --enable-preview. Run with
+ * --enable-native-access=ALL-UNNAMED.
+ */
+public class ForeignHighlighter implements Highlighter {
+    private static final MethodHandle COLOR_REQUEST;
+    private static final MethodHandle COLOR_UPDATE_REVISION;
+
+    static {
+        // Same library and lookup path as the JNI binding.
+        System.loadLibrary("libColor");
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup lookup = SymbolLookup.loaderLookup();
+        COLOR_REQUEST = linker.downcallHandle(
+                lookup.find("color_request").orElseThrow(),
+                FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG, ValueLayout.ADDRESS,
+                        ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+        COLOR_UPDATE_REVISION = linker.downcallHandle(
+                lookup.find("color_update_revision").orElseThrow(),
+                FunctionDescriptor.ofVoid(ValueLayout.JAVA_LONG));
+    }
+
+    // Native buffers reused by one worker thread across calls, only reallocated to grow.
+    private static class Buffers {
+        private Arena arena;
+        private MemorySegment text = MemorySegment.NULL;
+        private MemorySegment colors = MemorySegment.NULL;
+
+        void ensureCapacity(int length) {
+            if (text.byteSize() >= length) {
+                return;
+            }
+            // Auto arena: freed by the GC once unreachable, that is after the
+            // next resize or once the thread and its Buffers are gone.
+            arena = Arena.ofAuto();
+            text = arena.allocate(length);
+            colors = arena.allocate(length * 3L);
+        }
+    }
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    @Override
+    public void requestColors(long revision, String text, byte[] result) {
+        requestColors(revision, text, 0, text.length(), result, 0);
+    }
+
+    @Override
+    public void requestColors(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+        Buffers b = buffers.get();
+        b.ensureCapacity(end - start);
+        int length = end - start;
+        // One byte per char keeps offsets aligned with the editor, anything
+        // outside Latin-1 becomes '?' which is neither a digit nor a space.
+        // Written straight into the segment, no intermediate byte[].
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(start + i);
+            b.text.set(ValueLayout.JAVA_BYTE, i, c < 256 ? (byte) c : (byte) '?');
+        }
+        try {
+            COLOR_REQUEST.invokeExact(revision, b.text, length, b.colors);
+        } catch (Throwable ex) {
+            throw new IllegalStateException("color_request failed", ex);
+        }
+        // A heap array can't be handed to the downcall on JDK 21, so one copy out.
+        MemorySegment.copy(b.colors, ValueLayout.JAVA_BYTE, 0, result, resultOffset, length * 3);
+    }
+
+    @Override
+    public void updateRevision(long revision) {
+        try {
+            COLOR_UPDATE_REVISION.invokeExact(revision);
+        } catch (Throwable ex) {
+            throw new IllegalStateException("color_update_revision failed", ex);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package colorserver;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the tail latency of an engine that sometimes stalls: a chunk that
+ * takes longer than the learned p95 is started again on another thread and
+ * whichever attempt finishes first wins. The other one is interrupted, the
+ * Java engines stop on that, libColor finishes and is ignored.
+ *
+ * Only worth it when a duplicate does not stall the same way, libColor
+ * decides on each thread by itself for that reason.
+ */
+public class HedgedHighlighter implements Highlighter {
+    private static final int PERCENTILE = 95;
+    private static final int WINDOW = 256;
+    // Until there are enough samples to learn from.
+    private static final int MIN_SAMPLES = 20;
+    private static final long INITIAL_DELAY = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_DELAY = TimeUnit.MICROSECONDS.toNanos(200);
+    // libColor stalls one call in ten, which puts its stall at the p95 and
+    // would stop hedging for good. An attempt this many times slower than
+    // the median is hedged anyway.
+    private static final int MAX_MEDIANS = 10;
+    // Stalled attempts keep their thread, never more than this many at once
+    // over all hedged engines.
+    private static final int MAX_ATTEMPTS = 64;
+    private static final ThreadPoolExecutor ATTEMPTS = new ThreadPoolExecutor(0, MAX_ATTEMPTS,
+            30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), task -> {
+                Thread thread = new Thread(task, "ColorServer hedge");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Highlighter engine;
+    private final LatencyTracker latencies = new LatencyTracker(WINDOW);
+
+    public HedgedHighlighter(Highlighter engine) {
+        this.engine = engine;
+    }
+
+    // How long an attempt may run before a second one is started.
+    public long hedgeDelay() {
+        if (latencies.count() < MIN_SAMPLES) {
+            return INITIAL_DELAY;
+        }
+        long delay = Math.min(latencies.percentile(PERCENTILE), MAX_MEDIANS * latencies.percentile(50));
+        return Math.max(MIN_DELAY, delay);
+    }
+
+    @Override
+    public void requestColors(long revision, String text, byte[] result) {
+        requestColors(revision, text, 0, text.length(), result, 0);
+    }
+
+    @Override
+    public void requestColors(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+        ExecutorCompletionService<byte[]> done = new ExecutorCompletionService<byte[]>(ATTEMPTS);
+        Future<byte[]> first;
+        Future<byte[]> second = null;
+        long started = System.nanoTime();
+        long hedged = 0;
+        Future<byte[]> winner = null;
+        try {
+            first = done.submit(() -> attempt(revision, text, start, end));
+        } catch (RejectedExecutionException ex) {
+            // Every attempt thread is stuck, no point in adding more.
+            engine.requestColors(revision, text, start, end, result, resultOffset);
+            return;
+        }
+        try {
+            winner = done.poll(hedgeDelay(), TimeUnit.NANOSECONDS);
+            if (winner == null) {
+                try {
+                    hedged = System.nanoTime();
+                    second = done.submit(() -> attempt(revision, text, start, end));
+                } catch (RejectedExecutionException ex) {
+                    hedged = 0;
+                }
+                winner = done.take();
+            }
+            byte[] colors = winner.get();
+            System.arraycopy(colors, 0, result, resultOffset, colors.length);
+        } catch (InterruptedException ex) {
+            // result stays unfilled, the caller sees the flag and answers nothing.
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Highlighting failed", ex.getCause());
+        } finally {
+            // Each attempt's own run time, the loser's so far as it took at
+            // least that long. Learning from winners alone would make the
+            // delay shrink each time a stall is hedged.
+            long now = System.nanoTime();
+            if (winner != null) {
+                latencies.add(now - (winner == second ? hedged : started));
+                if (second != null) {
+                    latencies.add(now - (winner == second ? started : hedged));
+                }
+            }
+            first.cancel(true);
+            if (second != null) {
+                second.cancel(true);
+            }
+        }
+    }
+
+    private byte[] attempt(long revision, String text, int start, int end) {
+        byte[] colors = new byte[(end - start) * 3];
+        engine.requestColors(revision, text, start, end, colors, 0);
+        return colors;
+    }
+
+    @Override
+    public void updateRevision(long revision) {
+        engine.updateRevision(revision);
+    }
+}
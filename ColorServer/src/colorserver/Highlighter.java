@@ -0,0 +1,22 @@
+package colorserver;
+
+/**
+ * Engine that turns a chunk of text into colors, 3 bytes (r, g, b) per char.
+ * Implementations must be safe to call from several worker threads at once.
+ */
+public interface Highlighter {
+    // Fills result, stops early once a newer revision has been announced.
+    // Interrupted, it may stop early too and leaves the interrupt flag set,
+    // result is not to be used then.
+    void requestColors(long revision, String text, byte[] result);
+
+    void updateRevision(long revision);
+
+    // Colors text[start, end) into result from resultOffset on. The default
+    // goes through a copy, engines that can work in place override it.
+    default void requestColors(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+        byte[] colors = new byte[(end - start) * 3];
+        requestColors(revision, text.substring(start, end), colors);
+        System.arraycopy(colors, 0, result, resultOffset, colors.length);
+    }
+}
@@ -0,0 +1,49 @@
+package colorserver;
+
+import java.util.Random;
+
+/**
+ * Time per requestColors call of the engines, on random chunks of the size
+ * the server sends them in. libColor stalls now and then on purpose, build
+ * it with the stalls taken out to compare native and foreign.
+ *
+ * java -cp ColorServer.jar colorserver.HighlighterBenchmark [--chunk=n]
+ *     [--calls=n] engine...
+ */
+public class HighlighterBenchmark {
+    private static final int WARMUP_CALLS = 2000;
+
+    // Microseconds per call over calls calls, after warming up.
+    public static double measure(Highlighter highlighter, int chunk, int calls) {
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < chunk; ++i) {
+            builder.append("ab 12\n".charAt(random.nextInt(6)));
+        }
+        String text = builder.toString();
+        byte[] result = new byte[chunk * 3];
+        for (int i = 0; i < WARMUP_CALLS; ++i) {
+            highlighter.requestColors(i, text, result);
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < calls; ++i) {
+            highlighter.requestColors(WARMUP_CALLS + i, text, result);
+        }
+        return (System.nanoTime() - started) / 1e3 / calls;
+    }
+
+    public static void main(String[] args) {
+        int chunk = ColorServer.CHUNK_SIZE;
+        int calls = 10000;
+        for (String arg : args) {
+            if (arg.startsWith("--chunk=")) {
+                chunk = Integer.parseInt(arg.substring("--chunk=".length()));
+            } else if (arg.startsWith("--calls=")) {
+                calls = Integer.parseInt(arg.substring("--calls=".length()));
+            } else {
+                double micros = measure(ColorServer.createEngine(arg), chunk, calls);
+                System.out.println(String.format("%-8s %8.2f us/call", arg, micros));
+            }
+        }
+    }
+}
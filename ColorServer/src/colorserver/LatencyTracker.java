@@ -0,0 +1,45 @@
+package colorserver;
+
+import java.util.Arrays;
+
+/**
+ * Percentiles over the last few task latencies. The sorted copy is only
+ * rebuilt every few samples, reading is cheap enough to do per task.
+ */
+public class LatencyTracker {
+    private static final int RESORT_INTERVAL = 16;
+
+    private final long[] samples;
+    private int count;
+    private int next;
+    private long[] sorted = new long[0];
+    private int sinceSort;
+
+    public LatencyTracker(int window) {
+        samples = new long[window];
+    }
+
+    public synchronized void add(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        ++sinceSort;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    // The given percentile (0-100) in nanoseconds, 0 without samples.
+    public synchronized long percentile(int percent) {
+        if (count == 0) {
+            return 0;
+        }
+        if (sinceSort >= RESORT_INTERVAL || sorted.length != count) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceSort = 0;
+        }
+        return sorted[Math.min(count - 1, count * percent / 100)];
+    }
+}
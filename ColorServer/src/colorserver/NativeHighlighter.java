@@ -0,0 +1,23 @@
+package colorserver;
+
+/**
+ * Highlighter backed by libColor through JNI.
+ */
+public class NativeHighlighter implements Highlighter {
+    static {
+        System.loadLibrary("libColor");
+    }
+
+    @Override
+    public void requestColors(long revision, String text, byte[] result) {
+        requestColorsNative(revision, text, result);
+    }
+
+    @Override
+    public void updateRevision(long revision) {
+        updateRevisionNative(revision);
+    }
+
+    private static native void requestColorsNative(long revision, String text, byte[] result);
+    private static native void updateRevisionNative(long revision);
+}
@@ -0,0 +1,84 @@
+package colorserver;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits big chunks into halves and colors them on a fork/join pool, every
+ * part writing its own slice of the result. Only valid because coloring a
+ * char does not depend on its neighbours.
+ */
+public class ParallelHighlighter implements Highlighter {
+    // Below this many chars splitting costs more than it saves.
+    public static final int MIN_SPLIT = 2048;
+
+    private final Highlighter engine;
+    private final ForkJoinPool pool;
+    private final int minSplit;
+
+    // One pool for all instances, the common pool is shared with whatever
+    // else runs in this JVM.
+    private static class SharedPool {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Never serialized.
+    @SuppressWarnings("serial")
+    private class Part extends RecursiveAction {
+        final long revision;
+        final String text;
+        final int start;
+        final int end;
+        final byte[] result;
+        final int resultOffset;
+
+        Part(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+            this.revision = revision;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.result = result;
+            this.resultOffset = resultOffset;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start < 2 * minSplit) {
+                engine.requestColors(revision, text, start, end, result, resultOffset);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new Part(revision, text, start, middle, result, resultOffset),
+                    new Part(revision, text, middle, end, result, resultOffset + (middle - start) * 3));
+        }
+    }
+
+    public ParallelHighlighter(Highlighter engine) {
+        this(engine, SharedPool.POOL, MIN_SPLIT);
+    }
+
+    public ParallelHighlighter(Highlighter engine, ForkJoinPool pool, int minSplit) {
+        this.engine = engine;
+        this.pool = pool;
+        this.minSplit = minSplit;
+    }
+
+    @Override
+    public void requestColors(long revision, String text, byte[] result) {
+        requestColors(revision, text, 0, text.length(), result, 0);
+    }
+
+    @Override
+    public void requestColors(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+        if (end - start < 2 * minSplit) {
+            engine.requestColors(revision, text, start, end, result, resultOffset);
+            return;
+        }
+        pool.invoke(new Part(revision, text, start, end, result, resultOffset));
+    }
+
+    @Override
+    public void updateRevision(long revision) {
+        engine.updateRevision(revision);
+    }
+}
@@ -0,0 +1,342 @@
+package colorserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plays a recording made with texteditor.record against a ColorServer and
+ * reports how long the answers took, next to how long they took when the
+ * recording was made. The editor is not needed, so captured sessions can
+ * run as regression benchmarks.
+ *
+ * java -cp ColorServer.jar colorserver.Replay [--speed=x] [--highlighter=name]
+ *     [--server=host:port] recording
+ *
+ * --speed=2 plays twice as fast, --speed=0 as fast as possible. Without
+ * --server an in-process ColorServer is started.
+ */
+public class Replay {
+    // Layout of texteditor.TrafficRecorder.
+    public static final int MAGIC = 0x434F4C52;
+    // 2: the recorded answers carry request ids, protocol 2.
+    public static final int VERSION = 2;
+    public static final int TO_SERVER = 0;
+    public static final int FROM_SERVER = 1;
+    public static final int CONNECT = 2;
+    // Replay ends after this long without an answer.
+    private static final long QUIET_MILLIS = 1000;
+
+    // One message for the server, sent at nanos into the recording.
+    private static class Message {
+        final long nanos;
+        final byte[] bytes;
+        final String key;
+
+        Message(long nanos, byte[] bytes, String key) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.key = key;
+        }
+    }
+
+    public static class Report {
+        public int messages;
+        public int answers;
+        public int retries;
+        public long replayNanos;
+        // Sorted, from the first message naming the same document and revision.
+        public long[] latencies;
+        public long[] recordedLatencies;
+
+        @Override
+        public String toString() {
+            return "Replayed " + messages + " messages in " + replayNanos / 1000000 + " ms, "
+                    + answers + " answers, " + retries + " retries\n"
+                    + "replay   " + describe(latencies) + "\n"
+                    + "recorded " + describe(recordedLatencies);
+        }
+
+        private static String describe(long[] sorted) {
+            if (sorted.length == 0) {
+                return "no answers";
+            }
+            return String.format("p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                    percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private final ArrayList<Message> messages = new ArrayList<Message>();
+    private final ArrayList<Long> recordedLatencies = new ArrayList<Long>();
+
+    public Replay(Path recording) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recording)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a recording: " + recording);
+            }
+            ByteBuffer toServer = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer fromServer = ByteBuffer.allocate(64 * 1024);
+            HashMap<String, Long> sent = new HashMap<String, Long>();
+            while (true) {
+                int kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                long nanos = in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                if (kind == CONNECT) {
+                    // Whatever was cut off went to the old server, which
+                    // never answers what it was sent either.
+                    toServer.clear();
+                    fromServer.clear();
+                    sent.clear();
+                } else if (kind == TO_SERVER) {
+                    toServer = append(toServer, bytes);
+                    readMessages(toServer, nanos, sent);
+                } else {
+                    fromServer = append(fromServer, bytes);
+                    readAnswers(fromServer, nanos, sent);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ByteBuffer append(ByteBuffer buffer, byte[] bytes) {
+        if (buffer.remaining() < bytes.length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes.length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return buffer.put(bytes);
+    }
+
+    private void readMessages(ByteBuffer buffer, long nanos, HashMap<String, Long> sent) throws IOException {
+        buffer.flip();
+        int length;
+        while ((length = SelectorServer.frameLength(buffer)) >= 0) {
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            String key = messageKey(frame);
+            if (key != null) {
+                sent.putIfAbsent(key, nanos);
+            }
+            messages.add(new Message(nanos, frame, key));
+        }
+        buffer.compact();
+    }
+
+    private void readAnswers(ByteBuffer buffer, long nanos, HashMap<String, Long> sent) throws IOException {
+        buffer.flip();
+        int length;
+        while ((length = answerLength(buffer)) >= 0) {
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            DataInputStream answer = new DataInputStream(new ByteArrayInputStream(frame));
+            Long sentAt = sent.get(answer.readUTF() + "@" + answer.readLong());
+            if (sentAt != null) {
+                recordedLatencies.add(nanos - sentAt);
+            }
+        }
+        buffer.compact();
+    }
+
+    // Document and revision the message is about, null for those without.
+    private static String messageKey(byte[] frame) throws IOException {
+        DataInputStream message = new DataInputStream(new ByteArrayInputStream(frame));
+        int type = message.readInt();
+        if (type != ColorServer.MESSAGE_REQUEST
+                && (type < ColorServer.MESSAGE_OPEN || type > ColorServer.MESSAGE_HIGHLIGHT)) {
+            return null;
+        }
+        return message.readUTF() + "@" + message.readLong();
+    }
+
+    // Length of the answer at the buffer's position, -1 until all of it is there.
+    private static int answerLength(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.limit() - start < 2) {
+            return -1;
+        }
+        // Path, revision, request id and start.
+        int at = start + 2 + (buffer.getShort(start) & 0xFFFF) + 8 + 8 + 4;
+        if (at + 4 > buffer.limit()) {
+            return -1;
+        }
+        int count = buffer.getInt(at);
+        at += 4;
+        if (count == ColorServer.RESPONSE_RETRY) {
+            at += 4;
+        } else if (count == ColorServer.RESPONSE_TOKENS) {
+            if (at + 4 > buffer.limit()) {
+                return -1;
+            }
+            at += 4 + buffer.getInt(at) * 5;
+        } else {
+            at += count;
+        }
+        return at > buffer.limit() ? -1 : at - start;
+    }
+
+    public int messageCount() {
+        return messages.size();
+    }
+
+    // Sends the recorded messages over socket, speed times as fast as they
+    // were recorded or as fast as possible for 0, and collects the answers.
+    public Report run(Socket socket, double speed) throws IOException, InterruptedException {
+        ConcurrentHashMap<String, Long> sent = new ConcurrentHashMap<String, Long>();
+        ArrayList<Long> latencies = new ArrayList<Long>();
+        int[] counts = new int[2];
+        long[] lastAnswer = { System.nanoTime() };
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    String key = in.readUTF() + "@" + in.readLong();
+                    in.readLong();
+                    in.readInt();
+                    int count = in.readInt();
+                    if (count == ColorServer.RESPONSE_RETRY) {
+                        in.readInt();
+                    } else if (count == ColorServer.RESPONSE_TOKENS) {
+                        in.skipNBytes(in.readInt() * 5L);
+                    } else {
+                        in.skipNBytes(count);
+                    }
+                    long now = System.nanoTime();
+                    Long sentAt = sent.get(key);
+                    synchronized (latencies) {
+                        if (count == ColorServer.RESPONSE_RETRY) {
+                            ++counts[1];
+                        } else {
+                            ++counts[0];
+                            if (sentAt != null) {
+                                latencies.add(now - sentAt);
+                            }
+                        }
+                        lastAnswer[0] = now;
+                    }
+                }
+            } catch (IOException ex) {
+                // The server went away, or the replay is done.
+            }
+        }, "Replay reader");
+        reader.start();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        long started = System.nanoTime();
+        long firstNanos = messages.isEmpty() ? 0 : messages.get(0).nanos;
+        int count = 0;
+        for (Message message : messages) {
+            if (message.bytes.length == 4 && ByteBuffer.wrap(message.bytes).getInt() == ColorServer.MESSAGE_CLOSE) {
+                // Sent at the end, after the answers.
+                continue;
+            }
+            if (speed > 0) {
+                long due = started + (long) ((message.nanos - firstNanos) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    out.flush();
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            if (message.key != null) {
+                sent.putIfAbsent(message.key, System.nanoTime());
+            }
+            out.write(message.bytes);
+            ++count;
+        }
+        out.flush();
+        long sendDone = System.nanoTime();
+        while (true) {
+            long quiet;
+            synchronized (latencies) {
+                quiet = System.nanoTime() - Math.max(lastAnswer[0], sendDone);
+            }
+            if (quiet >= QUIET_MILLIS * 1000000) {
+                break;
+            }
+            Thread.sleep(QUIET_MILLIS / 10);
+        }
+        out.writeInt(ColorServer.MESSAGE_CLOSE);
+        out.flush();
+        socket.close();
+        reader.join();
+
+        Report report = new Report();
+        synchronized (latencies) {
+            report.messages = count;
+            report.answers = counts[0];
+            report.retries = counts[1];
+            report.replayNanos = Math.max(lastAnswer[0], sendDone) - started;
+            report.latencies = sorted(latencies);
+        }
+        report.recordedLatencies = sorted(recordedLatencies);
+        return report;
+    }
+
+    private static long[] sorted(ArrayList<Long> values) {
+        long[] result = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    public static void main(String[] args) throws Exception {
+        double speed = 1;
+        String highlighterName = System.getProperty("colorserver.highlighter");
+        String server = null;
+        for (int i = 0; i < args.length - 1; ++i) {
+            if (args[i].startsWith("--speed=")) {
+                speed = Double.parseDouble(args[i].substring("--speed=".length()));
+            } else if (args[i].startsWith("--highlighter=")) {
+                highlighterName = args[i].substring("--highlighter=".length());
+            } else if (args[i].startsWith("--server=")) {
+                server = args[i].substring("--server=".length());
+            }
+        }
+        Replay replay = new Replay(Paths.get(args[args.length - 1]));
+        Socket socket;
+        if (server != null) {
+            int colon = server.lastIndexOf(':');
+            socket = new Socket(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+            ColorServer.readHello(new DataInputStream(socket.getInputStream()));
+        } else {
+            // Same as the editor does: listen, the server connects.
+            try (ServerSocket listening = new ServerSocket(0)) {
+                Highlighter highlighter = ColorServer.createHighlighter(highlighterName);
+                Thread colorServer = new Thread(() -> new ColorServer(listening.getLocalPort(), highlighter).start());
+                colorServer.setDaemon(true);
+                colorServer.start();
+                socket = listening.accept();
+                ColorServer.readHello(new DataInputStream(socket.getInputStream()));
+            }
+        }
+        System.out.println(replay.run(socket, speed));
+    }
+}
@@ -0,0 +1,117 @@
+package colorserver;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Worker pool shared by many clients. Every client queues into its own
+ * Queue and the workers take one task per client in turn, so a client
+ * pasting a huge file does not starve the others. Clients with more urgent
+ * work go before those with only background work left.
+ */
+public class RequestScheduler {
+    public class Queue implements Executor {
+        // AdmissionControl tickets, most urgent first.
+        private final PriorityQueue<Runnable> tasks = new PriorityQueue<Runnable>();
+        private boolean closed;
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (RequestScheduler.this) {
+                if (!closed) {
+                    tasks.add(task);
+                    if (tasks.size() == 1) {
+                        ready.add(this);
+                        RequestScheduler.this.notify();
+                    }
+                    return;
+                }
+            }
+            // Work handed out after the client left, e.g. by a finished chunk.
+            if (task instanceof AdmissionControl.Ticket) {
+                ((AdmissionControl.Ticket) task).cancel();
+            }
+        }
+
+        // Drops the queued tasks and gives their tickets' bytes back,
+        // running ones finish.
+        public void close() {
+            Runnable[] dropped;
+            synchronized (RequestScheduler.this) {
+                closed = true;
+                dropped = tasks.toArray(new Runnable[0]);
+                tasks.clear();
+                ready.remove(this);
+            }
+            for (Runnable task : dropped) {
+                if (task instanceof AdmissionControl.Ticket) {
+                    ((AdmissionControl.Ticket) task).cancel();
+                }
+            }
+        }
+    }
+
+    // Queues with pending tasks in round-robin order.
+    private final ArrayDeque<Queue> ready = new ArrayDeque<Queue>();
+    private final Thread[] workers;
+
+    public RequestScheduler(int threadCount) {
+        workers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            workers[i] = new Thread(this::work, "ColorServer worker " + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // Stops the workers once their current task is done.
+    public void shutdown() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    public Queue newQueue() {
+        return new Queue();
+    }
+
+    private synchronized Runnable take() throws InterruptedException {
+        while (ready.isEmpty()) {
+            wait();
+        }
+        Queue queue = null;
+        for (Queue candidate : ready) {
+            if (queue == null || priorityOf(candidate.tasks.peek()) > priorityOf(queue.tasks.peek())) {
+                queue = candidate;
+            }
+        }
+        ready.remove(queue);
+        Runnable task = queue.tasks.poll();
+        if (!queue.tasks.isEmpty()) {
+            ready.add(queue);
+        }
+        return task;
+    }
+
+    private static int priorityOf(Runnable task) {
+        return task instanceof AdmissionControl.Ticket
+                ? ((AdmissionControl.Ticket) task).getPriority() : ColorServer.PRIORITY_NORMAL;
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Runnable task;
+            try {
+                task = take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                System.out.println("Highlighting failed, ex = " + ex.getMessage());
+            }
+        }
+    }
+}
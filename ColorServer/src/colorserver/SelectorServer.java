@@ -0,0 +1,281 @@
+package colorserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Listening ColorServer for many editors at once. One selector thread does
+ * all socket I/O and cuts the byte stream into messages, the highlighting
+ * runs on a RequestScheduler shared by every client.
+ */
+public class SelectorServer {
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final RequestScheduler scheduler;
+    // One memory limit for all clients together.
+    private final AdmissionControl admission = new AdmissionControl();
+    private final String highlighterName;
+    // Sessions with new answers, their write interest is set by the selector thread.
+    private final ConcurrentLinkedQueue<Session> writable = new ConcurrentLinkedQueue<Session>();
+    private volatile boolean closed;
+    // Longer messages are taken for garbage, the client is dropped.
+    static final int MAX_FRAME_BYTES = 256 << 20;
+
+    private class Session {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final RequestScheduler.Queue queue = scheduler.newQueue();
+        final ColorServer handler;
+        ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+
+        Session(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            handler = new ColorServer(InputStream.nullInputStream(), new ByteArrayOutputStream() {
+                // ColorServer flushes once per answer.
+                @Override
+                public synchronized void flush() {
+                    send(ByteBuffer.wrap(toByteArray()));
+                    reset();
+                }
+            }, createSessionHighlighter(highlighterName));
+            handler.setAdmissionControl(admission);
+            handler.writeHello();
+        }
+
+        void send(ByteBuffer answer) {
+            synchronized (output) {
+                output.add(answer);
+            }
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        void close() {
+            queue.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                System.out.println("Closing client failed, ex = " + ex.getMessage());
+            }
+        }
+    }
+
+    public SelectorServer(int port, String highlighterName, int threadCount) throws IOException {
+        this.highlighterName = highlighterName;
+        scheduler = new RequestScheduler(threadCount);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // libColor's cancellation revision is process-wide, so with several
+    // clients one of them must not cancel another's work.
+    static Highlighter createSessionHighlighter(String name) {
+        Highlighter highlighter = ColorServer.createEngine(name);
+        if (highlighter instanceof VectorHighlighter) {
+            return ColorServer.withOptions(highlighter);
+        }
+        return ColorServer.withOptions(new Highlighter() {
+            @Override
+            public void requestColors(long revision, String text, byte[] result) {
+                highlighter.requestColors(revision, text, result);
+            }
+
+            @Override
+            public void requestColors(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+                highlighter.requestColors(revision, text, start, end, result, resultOffset);
+            }
+
+            @Override
+            public void updateRevision(long revision) {}
+        });
+    }
+
+    public void run() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                System.out.println("Select failed, ex = " + ex.getMessage());
+                break;
+            }
+            Session session;
+            while ((session = writable.poll()) != null) {
+                if (session.key.isValid()) {
+                    session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                try {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read((Session) key.attachment());
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write((Session) key.attachment());
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    // Only this client is dropped, the others go on.
+                    System.out.println("Client failed, ex = " + ex);
+                    if (key.attachment() != null) {
+                        ((Session) key.attachment()).close();
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((Session) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ex) {
+            System.out.println("Closing server failed, ex = " + ex.getMessage());
+        }
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        scheduler.shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        new Session(channel);
+    }
+
+    private void read(Session session) throws IOException {
+        if (!session.input.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(session.input.capacity() * 2);
+            session.input.flip();
+            larger.put(session.input);
+            session.input = larger;
+        }
+        if (session.channel.read(session.input) < 0) {
+            session.close();
+            return;
+        }
+        ByteBuffer input = session.input;
+        input.flip();
+        int length;
+        while ((length = frameLength(input)) >= 0) {
+            byte[] frame = new byte[length];
+            input.get(frame);
+            DataInputStream message = new DataInputStream(new ByteArrayInputStream(frame));
+            if (!session.handler.handleMessage(message.readInt(), message, session.queue)) {
+                session.close();
+                return;
+            }
+        }
+        input.compact();
+        session.handler.scheduleEditedMirrors(session.queue);
+    }
+
+    private void write(Session session) throws IOException {
+        synchronized (session.output) {
+            while (!session.output.isEmpty()) {
+                ByteBuffer answer = session.output.peek();
+                session.channel.write(answer);
+                if (answer.hasRemaining()) {
+                    return;
+                }
+                session.output.poll();
+            }
+            session.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Length of the message at the buffer's position, or -1 while part of it
+    // has not arrived yet. Mirrors the layouts ColorServer reads. Throws for
+    // a negative or absurd length, waiting for it would never end.
+    static int frameLength(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        if (buffer.limit() - start < 4) {
+            return -1;
+        }
+        int type = buffer.getInt(start);
+        int at = start + 4;
+        if (type < ColorServer.MESSAGE_REQUEST || type > ColorServer.MESSAGE_TRACE
+                || type == ColorServer.MESSAGE_CLOSE) {
+            return 4;
+        }
+        if (type == ColorServer.MESSAGE_TRACE) {
+            return at + 8 > buffer.limit() ? -1 : at + 8 - start;
+        }
+        if (type == ColorServer.MESSAGE_FORMAT) {
+            return at + 4 > buffer.limit() ? -1 : at + 4 - start;
+        }
+        at = skipUTF(buffer, at);
+        if (at < 0) {
+            return -1;
+        }
+        if (type == ColorServer.MESSAGE_CLOSE_DOCUMENT) {
+            return at > buffer.limit() ? -1 : at - start;
+        }
+        if (type == ColorServer.MESSAGE_PRIORITY) {
+            at += 4;
+            return at > buffer.limit() ? -1 : at - start;
+        }
+        // Revision.
+        at += 8;
+        if (type == ColorServer.MESSAGE_OPEN) {
+            at = skipLongUTF(buffer, at);
+        } else if (type == ColorServer.MESSAGE_REQUEST) {
+            at = skipUTF(buffer, at + 4);
+        } else if (type == ColorServer.MESSAGE_INSERT) {
+            at = skipLongUTF(buffer, at + 4);
+        } else {
+            at += 8;
+        }
+        return at < start || at > buffer.limit() ? -1 : at - start;
+    }
+
+    // writeUTF: unsigned short length, then the bytes.
+    private static int skipUTF(ByteBuffer buffer, int at) {
+        if (at < 0 || at + 2 > buffer.limit()) {
+            return -1;
+        }
+        return at + 2 + (buffer.getShort(at) & 0xFFFF);
+    }
+
+    private static int skipLongUTF(ByteBuffer buffer, int at) throws IOException {
+        if (at < 0 || at + 4 > buffer.limit()) {
+            return -1;
+        }
+        int length = buffer.getInt(at);
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad text length " + length);
+        }
+        return at + 4 + length;
+    }
+}
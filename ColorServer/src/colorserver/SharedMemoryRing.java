@@ -0,0 +1,211 @@
+package colorserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer byte ring living in a memory-mapped file
+ * shared by the editor and the ColorServer. Bytes are copied straight into
+ * and out of the mapping, there are no system calls on the data path.
+ *
+ * File layout (a copy of this class lives in the TextEditor project):
+ * a 64 byte state block (attached flag, editor pid, server pid), then the
+ * editor to server ring, then the server to editor ring. Each ring is a 128
+ * byte header (write position, closed flag, read position on its own cache
+ * line) followed by CAPACITY bytes of data.
+ */
+public class SharedMemoryRing {
+    public static final int CAPACITY = 4 << 20;
+    private static final int STATE_SIZE = 64;
+    private static final int HEADER_SIZE = 128;
+    private static final int ATTACHED = 0;
+    private static final int EDITOR_PID = 8;
+    private static final int SERVER_PID = 16;
+    private static final int WRITE_POSITION = 0;
+    private static final int CLOSED = 8;
+    private static final int READ_POSITION = 64;
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final int base;
+    private final int data;
+    private final int peerPid;
+
+    private SharedMemoryRing(MappedByteBuffer buffer, int base, int peerPid) {
+        this.buffer = buffer;
+        this.base = base;
+        this.data = base + HEADER_SIZE;
+        this.peerPid = peerPid;
+    }
+
+    public static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    STATE_SIZE + 2L * (HEADER_SIZE + CAPACITY));
+        }
+    }
+
+    public static SharedMemoryRing toServer(MappedByteBuffer buffer, boolean editorSide) {
+        return new SharedMemoryRing(buffer, STATE_SIZE, editorSide ? SERVER_PID : EDITOR_PID);
+    }
+
+    public static SharedMemoryRing fromServer(MappedByteBuffer buffer, boolean editorSide) {
+        return new SharedMemoryRing(buffer, STATE_SIZE + HEADER_SIZE + CAPACITY,
+                editorSide ? SERVER_PID : EDITOR_PID);
+    }
+
+    // Editor side: forget the previous server and wait for a new one to attach.
+    public static void detach(MappedByteBuffer buffer) {
+        LONGS.setRelease(buffer, SERVER_PID, 0L);
+        LONGS.setRelease(buffer, EDITOR_PID, ProcessHandle.current().pid());
+        LONGS.setRelease(buffer, ATTACHED, 0L);
+    }
+
+    // Server side: announce that both rings may be used now.
+    public static void attach(MappedByteBuffer buffer) {
+        LONGS.setRelease(buffer, SERVER_PID, ProcessHandle.current().pid());
+        LONGS.setRelease(buffer, ATTACHED, 1L);
+    }
+
+    public static boolean isAttached(MappedByteBuffer buffer) {
+        return (long) LONGS.getAcquire(buffer, ATTACHED) == 1L;
+    }
+
+    public void reset() {
+        LONGS.setRelease(buffer, base + WRITE_POSITION, 0L);
+        LONGS.setRelease(buffer, base + READ_POSITION, 0L);
+        LONGS.setRelease(buffer, base + CLOSED, 0L);
+    }
+
+    public void close() {
+        LONGS.setRelease(buffer, base + CLOSED, 1L);
+    }
+
+    public boolean isClosed() {
+        return (long) LONGS.getAcquire(buffer, base + CLOSED) == 1L;
+    }
+
+    private boolean isPeerAlive() {
+        long pid = (long) LONGS.getAcquire(buffer, peerPid);
+        return pid == 0 || ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    // Spin first, then park for a growing while, so an idle ring costs next to nothing.
+    private boolean await(int attempt) {
+        if (attempt < 256) {
+            Thread.onSpinWait();
+            return true;
+        }
+        if (attempt % 1024 == 0 && !isPeerAlive()) {
+            return false;
+        }
+        LockSupport.parkNanos(Math.min(1_000_000L, 1000L << Math.min(attempt - 256, 10)));
+        return true;
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long readPosition = (long) LONGS.getOpaque(buffer, base + READ_POSITION);
+        long available;
+        int attempt = 0;
+        while ((available = (long) LONGS.getAcquire(buffer, base + WRITE_POSITION) - readPosition) == 0) {
+            if (isClosed() || !await(attempt++)) {
+                return -1;
+            }
+        }
+        int offset = (int) (readPosition % CAPACITY);
+        int n = (int) Math.min(Math.min(len, available), CAPACITY - offset);
+        buffer.get(data + offset, b, off, n);
+        LONGS.setRelease(buffer, base + READ_POSITION, readPosition + n);
+        return n;
+    }
+
+    // Bytes that can be read without waiting.
+    private int available() {
+        long readPosition = (long) LONGS.getOpaque(buffer, base + READ_POSITION);
+        long writePosition = (long) LONGS.getAcquire(buffer, base + WRITE_POSITION);
+        return (int) (writePosition - readPosition);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        long writePosition = (long) LONGS.getOpaque(buffer, base + WRITE_POSITION);
+        while (len > 0) {
+            long free;
+            int attempt = 0;
+            while ((free = CAPACITY - (writePosition
+                    - (long) LONGS.getAcquire(buffer, base + READ_POSITION))) == 0) {
+                if (isClosed() || !await(attempt++)) {
+                    throw new EOFException("Shared memory ring closed");
+                }
+            }
+            int offset = (int) (writePosition % CAPACITY);
+            int n = (int) Math.min(Math.min(len, free), CAPACITY - offset);
+            buffer.put(data + offset, b, off, n);
+            writePosition += n;
+            LONGS.setRelease(buffer, base + WRITE_POSITION, writePosition);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public InputStream inputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return SharedMemoryRing.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return SharedMemoryRing.this.available();
+            }
+
+            @Override
+            public void close() {
+                SharedMemoryRing.this.close();
+            }
+        };
+    }
+
+    public OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (isClosed()) {
+                    throw new EOFException("Shared memory ring closed");
+                }
+                SharedMemoryRing.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                SharedMemoryRing.this.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package colorserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events for the server's part of a request. requestId is
+ * the one the editor sent with MESSAGE_TRACE, the editor's recording has
+ * the same id on its events, so the two recordings line up into a
+ * timeline. Enable with -XX:StartFlightRecording.
+ */
+public final class Tracing {
+    private Tracing() {
+    }
+
+    @Name("colorserver.Received")
+    @Label("Message Received")
+    @Category({ "ColorServer" })
+    public static class Received extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Message Type")
+        int messageType;
+    }
+
+    // From admission until a worker picks the work up.
+    @Name("colorserver.Queued")
+    @Label("Queued")
+    @Category({ "ColorServer" })
+    public static class Queued extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Path")
+        String path;
+        @Label("Chars")
+        int chars;
+        @Label("Priority")
+        int priority;
+    }
+
+    @Name("colorserver.Highlight")
+    @Label("Highlight")
+    @Category({ "ColorServer" })
+    public static class Highlight extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Path")
+        String path;
+        @Label("Revision")
+        long revision;
+        @Label("Start")
+        int start;
+        @Label("Chars")
+        int chars;
+    }
+
+    @Name("colorserver.Answer")
+    @Label("Answer Written")
+    @Category({ "ColorServer" })
+    public static class Answer extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Path")
+        String path;
+        @Label("Revision")
+        long revision;
+        @Label("Start")
+        int start;
+        @Label("Chars")
+        int chars;
+    }
+
+    // Dropped for memory, the editor is told to retry.
+    @Name("colorserver.Shed")
+    @Label("Shed")
+    @Category({ "ColorServer" })
+    public static class Shed extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Path")
+        String path;
+        @Label("Chars")
+        int chars;
+    }
+}
@@ -0,0 +1,95 @@
+package colorserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pure Java highlighter, classifies a whole vector of chars per step.
+ * Needs --add-modules jdk.incubator.vector at runtime.
+ */
+public class VectorHighlighter implements Highlighter {
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    private static final short CLASS_OTHER = 0;
+    private static final short CLASS_DIGIT = 1;
+    private static final short CLASS_SPACE = 2;
+
+    private final AtomicLong currentRevision = new AtomicLong();
+
+    @Override
+    public void requestColors(long revision, String text, byte[] result) {
+        requestColors(revision, text, 0, text.length(), result, 0);
+    }
+
+    @Override
+    public void requestColors(long revision, String text, int start, int end, byte[] result, int resultOffset) {
+        if (currentRevision.get() > revision) {
+            return;
+        }
+        char[] chars = new char[end - start];
+        text.getChars(start, end, chars, 0);
+        short[] classes = new short[SPECIES.length()];
+        int bound = SPECIES.loopBound(chars.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            // Interrupted when a hedged duplicate finished first.
+            if (currentRevision.get() > revision || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            // Chars above 0x7FFF turn negative here, that's fine as they are neither.
+            VectorMask<Short> digit = v.compare(VectorOperators.GE, (short) '0')
+                    .and(v.compare(VectorOperators.LE, (short) '9'));
+            VectorMask<Short> space = v.compare(VectorOperators.EQ, (short) ' ')
+                    .or(v.compare(VectorOperators.GE, (short) '\t')
+                            .and(v.compare(VectorOperators.LE, (short) '\r')));
+            ShortVector.zero(SPECIES)
+                    .blend(CLASS_DIGIT, digit)
+                    .blend(CLASS_SPACE, space)
+                    .intoArray(classes, 0);
+            for (int j = 0; j < classes.length; ++j) {
+                writeColor(classes[j], result, resultOffset + (i + j) * 3);
+            }
+        }
+        for (; i < chars.length; ++i) {
+            writeColor(classify(chars[i]), result, resultOffset + i * 3);
+        }
+    }
+
+    @Override
+    public void updateRevision(long revision) {
+        currentRevision.set(revision);
+    }
+
+    // Same rules as isdigit/isspace in the C locale.
+    static short classify(char c) {
+        if (c >= '0' && c <= '9') {
+            return CLASS_DIGIT;
+        }
+        if (c == ' ' || (c >= '\t' && c <= '\r')) {
+            return CLASS_SPACE;
+        }
+        return CLASS_OTHER;
+    }
+
+    private static void writeColor(short type, byte[] result, int offset) {
+        switch (type) {
+            case CLASS_DIGIT:
+                result[offset] = 0;
+                result[offset + 1] = 0;
+                result[offset + 2] = (byte) 255;
+                break;
+            case CLASS_SPACE:
+                result[offset] = (byte) 255;
+                result[offset + 1] = (byte) 255;
+                result[offset + 2] = (byte) 255;
+                break;
+            default:
+                result[offset] = 0;
+                result[offset + 1] = 0;
+                result[offset + 2] = 0;
+        }
+    }
+}
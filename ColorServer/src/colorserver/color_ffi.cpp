@@ -0,0 +1,22 @@
+#include "color_ffi.h"
+
+#include "highlight.h"
+
+#include <atomic>
+
+static_assert(sizeof(Color) == 3, "Color must be tightly packed r, g, b");
+
+static std::atomic<int64_t> currentRevision{0};
+
+void color_request(int64_t revision, const char *text, int32_t length, uint8_t *colors) {
+    if (currentRevision > revision)
+        return;
+
+    highlight(text, text + length, [revision]() {
+        return currentRevision > revision;
+    }, reinterpret_cast<Color *>(colors));
+}
+
+void color_update_revision(int64_t revision) {
+    currentRevision = revision;
+}
@@ -0,0 +1,27 @@
+#pragma once
+
+/* Plain C entry points for the java.lang.foreign binding (ForeignHighlighter). */
+
+#include <stdint.h>
+
+#ifdef _WIN32
+#define COLOR_EXPORT __declspec(dllexport)
+#else
+#define COLOR_EXPORT __attribute__((visibility("default")))
+#endif
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * Writes length colors (r, g, b) for the length bytes of text straight into colors.
+ * Both buffers are owned by the caller.
+ */
+COLOR_EXPORT void color_request(int64_t revision, const char *text, int32_t length, uint8_t *colors);
+
+COLOR_EXPORT void color_update_revision(int64_t revision);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,29 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class colorserver_NativeHighlighter */
+
+#ifndef _Included_colorserver_NativeHighlighter
+#define _Included_colorserver_NativeHighlighter
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     colorserver_NativeHighlighter
+ * Method:    requestColorsNative
+ * Signature: (JLjava/lang/String;[B)V
+ */
+JNIEXPORT void JNICALL Java_colorserver_NativeHighlighter_requestColorsNative
+  (JNIEnv *, jclass, jlong, jstring, jbyteArray);
+
+/*
+ * Class:     colorserver_NativeHighlighter
+ * Method:    updateRevisionNative
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_colorserver_NativeHighlighter_updateRevisionNative
+  (JNIEnv *, jclass, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -1,4 +1,4 @@
-#include "colorserver_ColorServer.h"
+#include "colorserver_NativeHighlighter.h"
 
 #include "highlight.h"
 
@@ -7,7 +7,7 @@
 
 static std::atomic<int> currentRevision{0};
 
-JNIEXPORT void JNICALL Java_colorserver_ColorServer_requestColors
+JNIEXPORT void JNICALL Java_colorserver_NativeHighlighter_requestColorsNative
   (JNIEnv *env, jclass clazz, jlong revision, jstring javaString, jbyteArray result) {
     if (currentRevision > revision)
         return;
@@ -38,7 +38,7 @@ JNIEXPORT void JNICALL Java_colorserver_ColorServer_requestColors
     (*env).ReleaseStringUTFChars(javaString, nativeString);
 }
 
-JNIEXPORT void JNICALL Java_colorserver_ColorServer_updateRevision
+JNIEXPORT void JNICALL Java_colorserver_NativeHighlighter_updateRevisionNative
 (JNIEnv *, jclass, jlong revision) {
     currentRevision = revision;
 }
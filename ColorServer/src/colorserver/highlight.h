@@ -12,23 +12,31 @@ struct Color {
   std::uint8_t r, g, b;
 };
 
-template<typename OutIter>
-void highlight(std::vector<char> const& text, std::function<bool()> const& isCanceled, OutIter out) {
+// Seeded once per thread, so a second request on another thread decides
+// whether to stall on its own instead of repeating the first one's choice.
+inline std::mt19937& randomEngine() {
+  static thread_local std::mt19937 engine{std::random_device{}()};
+  return engine;
+}
+
+template<typename InIter, typename OutIter>
+void highlight(InIter begin, InIter end, std::function<bool()> const& isCanceled, OutIter out) {
   if (isCanceled()) return;
-  std::srand(std::time(0));
+  std::mt19937& random = randomEngine();
 
 
-  if (std::rand() % 10 == 0) {
+  if (random() % 10 == 0) {
     using namespace std::chrono_literals;
     if (isCanceled()) return;
     std::this_thread::sleep_for(5s);
   }
 
-  for (char c : text) {
+  for (; begin != end; ++begin) {
+    char c = *begin;
     if (isCanceled()) return;
 
 
-    if (std::rand() % 30000 == 0) {
+    if (random() % 30000 == 0) {
       std::terminate();
     }
 
@@ -40,3 +48,8 @@ void highlight(std::vector<char> const& text, std::function<bool()> const& isCan
       *out++ = Color{0, 0, 0};
   }
 }
+
+template<typename OutIter>
+void highlight(std::vector<char> const& text, std::function<bool()> const& isCanceled, OutIter out) {
+  highlight(text.begin(), text.end(), isCanceled, out);
+}
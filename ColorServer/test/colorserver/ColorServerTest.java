@@ -1,16 +1,36 @@
 package colorserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 public class ColorServerTest {
     private ServerSocket serverSocket;
@@ -35,20 +55,766 @@ public class ColorServerTest {
     }
 
     @Test
-    public void testConnectAndDisconnect() throws IOException {
+    public void testConnectAndDisconnect() throws IOException, InterruptedException {
         // Test that it does not hang.
         serverSocket = new ServerSocket(0);
-        new Thread(() -> {
+        serverSocket.setSoTimeout(5000);
+        Thread server = new Thread(() -> new ColorServer(serverSocket.getLocalPort(), new VectorHighlighter()).start());
+        server.start();
+        try (Socket clientSocket = serverSocket.accept()) {
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            assertEquals(ColorServer.HELLO, in.readInt());
+            assertEquals(ColorServer.PROTOCOL_VERSION, in.readInt());
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            Thread.sleep(1000);
+            out.writeInt(ColorServer.MESSAGE_CLOSE);
+            out.flush();
+            server.join(5000);
+            assertFalse(server.isAlive());
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testVectorHighlighterColors() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            text.append("12 ab\t\u0660x");
+        }
+        byte[] result = new byte[text.length() * 3];
+
+        new VectorHighlighter().requestColors(0, text.toString(), result);
+
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            int expectedRed = (c == ' ' || c == '\t') ? 255 : 0;
+            int expectedBlue = (Character.isDigit(c) && c <= '9') || expectedRed == 255 ? 255 : 0;
+            assertEquals(expectedRed, result[i * 3] & 0xFF);
+            assertEquals(expectedRed, result[i * 3 + 1] & 0xFF);
+            assertEquals(expectedBlue, result[i * 3 + 2] & 0xFF);
+        }
+    }
+
+    @Test
+    public void testVectorHighlighterCanceled() {
+        VectorHighlighter highlighter = new VectorHighlighter();
+        highlighter.updateRevision(2);
+        byte[] result = new byte[3 * 3];
+
+        highlighter.requestColors(1, "123", result);
+
+        assertEquals(0, result[2]);
+    }
+
+    @Test
+    public void testParallelHighlighterMatchesSerial() {
+        Random random = new Random(3);
+        char[] chars = new char[100003];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = "ab 19\t\nx".charAt(random.nextInt(8));
+        }
+        String text = new String(chars);
+        byte[] expected = new byte[text.length() * 3];
+        new VectorHighlighter().requestColors(0, text, expected);
+        byte[] result = new byte[text.length() * 3];
+        new ParallelHighlighter(new VectorHighlighter(), ForkJoinPool.commonPool(), 100)
+                .requestColors(0, text, result);
+        assertArrayEquals(expected, result);
+    }
+
+    @Test
+    public void testHedgedHighlighterSkipsStall() {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean stallInterrupted = new AtomicBoolean();
+        Highlighter stallingOnce = new Highlighter() {
+            @Override
+            public void requestColors(long revision, String text, byte[] result) {
+                if (calls.getAndIncrement() == 0) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException ex) {
+                        stallInterrupted.set(true);
+                        return;
+                    }
+                }
+                new VectorHighlighter().requestColors(revision, text, result);
+            }
+
+            @Override
+            public void updateRevision(long revision) {}
+        };
+        byte[] result = new byte[3 * 3];
+        long started = System.nanoTime();
+        new HedgedHighlighter(stallingOnce).requestColors(0, "a1 ", result);
+        long elapsed = System.nanoTime() - started;
+
+        assertTrue(elapsed < 2_000_000_000L);
+        assertEquals((byte) 255, result[5]);
+        assertEquals(2, calls.get());
+        for (int i = 0; i < 50 && !stallInterrupted.get(); ++i) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-                Thread.sleep(1000);
-                out.writeInt(ColorServer.MESSAGE_CLOSE);
-                serverSocket.close();
-            } catch (IOException | InterruptedException ex) {
-                Logger.getLogger(ColorServerTest.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }).start();
-        new ColorServer(serverSocket.getLocalPort()).start();
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+            }
+        }
+        assertTrue(stallInterrupted.get());
+    }
+
+    @Test
+    public void testHedgedHighlighterAnswersNativeStall() {
+        // libColor stalls one request in ten for 5s. Empty text still decides
+        // whether to stall but never reaches libColor's random terminate.
+        NativeHighlighter engine = new NativeHighlighter();
+        AtomicInteger attempts = new AtomicInteger();
+        HedgedHighlighter hedged = new HedgedHighlighter(new Highlighter() {
+            @Override
+            public void requestColors(long revision, String text, byte[] result) {
+                attempts.incrementAndGet();
+                engine.requestColors(revision, text, result);
+            }
+
+            @Override
+            public void updateRevision(long revision) {}
+        });
+        int calls = 100;
+        int slow = 0;
+        for (int i = 0; i < calls; ++i) {
+            long started = System.nanoTime();
+            hedged.requestColors(0, "", new byte[0]);
+            if (System.nanoTime() - started > 4_000_000_000L) {
+                ++slow;
+            }
+        }
+        // About ten stalls were hedged, only both attempts stalling is slow.
+        assertTrue(attempts.get() > calls);
+        assertTrue("slow: " + slow, slow <= 5);
+    }
+
+    @Test
+    public void testInterruptedWorkIsRetried() throws Exception {
+        ByteArrayOutputStream answers = new ByteArrayOutputStream();
+        ColorServer colorServer = new ColorServer(InputStream.nullInputStream(), answers,
+                new HedgedHighlighter(new VectorHighlighter()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream message = new DataOutputStream(bytes);
+        message.writeUTF("path");
+        message.writeLong(1);
+        message.writeInt(0);
+        message.writeUTF("ab 12");
+        // A worker told to stop while it waits for the hedged attempts.
+        colorServer.handleMessage(ColorServer.MESSAGE_REQUEST,
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), task -> {
+                    Thread.currentThread().interrupt();
+                    task.run();
+                    Thread.interrupted();
+                });
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(answers.toByteArray()));
+        assertEquals("path", in.readUTF());
+        assertEquals(1, in.readLong());
+        in.readLong();
+        assertEquals(0, in.readInt());
+        assertEquals(ColorServer.RESPONSE_RETRY, in.readInt());
+        assertEquals(5, in.readInt());
+    }
+
+    @Test
+    public void testAdmissionControlShedsOldest() {
+        int chars = 100;
+        long ticketBytes = chars * AdmissionControl.BYTES_PER_CHAR;
+        AdmissionControl admission = new AdmissionControl(3 * ticketBytes, 2 * ticketBytes);
+        Object first = new Object();
+        Object second = new Object();
+        AtomicInteger shed = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        AdmissionControl.Ticket[] tickets = new AdmissionControl.Ticket[4];
+        Object[] documents = { first, first, second, first };
+        for (int i = 0; i < tickets.length; ++i) {
+            final int index = i;
+            tickets[i] = admission.new Ticket(documents[i], ColorServer.PRIORITY_NORMAL, chars, () -> done.incrementAndGet(),
+                    () -> shed.compareAndSet(0, index + 1));
+            assertTrue(admission.admit(tickets[i]));
+        }
+        // The third ticket for the first document pushed out its oldest one.
+        assertEquals(1, shed.get());
+        assertEquals(3 * ticketBytes, admission.bytes());
+        for (AdmissionControl.Ticket ticket : tickets) {
+            ticket.run();
+        }
+        assertEquals(3, done.get());
+        assertEquals(0, admission.bytes());
+
+        // Running work cannot be shed, the newcomer is refused instead.
+        AdmissionControl.Ticket blocker = admission.new Ticket(second, ColorServer.PRIORITY_NORMAL, 2 * chars, () -> {
+            assertFalse(admission.admit(admission.new Ticket(first, ColorServer.PRIORITY_NORMAL, 2 * chars, () -> {}, () -> {})));
+        }, () -> {});
+        assertTrue(admission.admit(blocker));
+        blocker.run();
+        assertEquals(0, admission.bytes());
+    }
+
+    @Test
+    public void testAdmissionControlShedsBackgroundFirst() {
+        int chars = 100;
+        long ticketBytes = chars * AdmissionControl.BYTES_PER_CHAR;
+        AdmissionControl admission = new AdmissionControl(2 * ticketBytes, 2 * ticketBytes);
+        Object document = new Object();
+        AtomicInteger shed = new AtomicInteger();
+        int[] priorities = { ColorServer.PRIORITY_NORMAL, ColorServer.PRIORITY_BACKGROUND,
+                ColorServer.PRIORITY_NORMAL };
+        AdmissionControl.Ticket[] tickets = new AdmissionControl.Ticket[priorities.length];
+        for (int i = 0; i < tickets.length; ++i) {
+            final int index = i;
+            tickets[i] = admission.new Ticket(document, priorities[i], chars, () -> {},
+                    () -> shed.compareAndSet(0, index + 1));
+            assertTrue(admission.admit(tickets[i]));
+        }
+        // The background ticket went although the first one is older.
+        assertEquals(2, shed.get());
+        assertTrue(tickets[2].compareTo(tickets[0]) > 0);
+        assertTrue(tickets[1].compareTo(tickets[2]) > 0);
+
+        // Background work never pushes out anything more urgent.
+        assertFalse(admission.admit(admission.new Ticket(document, ColorServer.PRIORITY_BACKGROUND,
+                chars, () -> {}, () -> {})));
+        assertEquals(2, shed.get());
+    }
+
+    @Test
+    public void testAdmissionControlKeepsQueueForOversizedTicket() {
+        int chars = 100;
+        long ticketBytes = chars * AdmissionControl.BYTES_PER_CHAR;
+        AdmissionControl admission = new AdmissionControl(3 * ticketBytes, 3 * ticketBytes);
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        AdmissionControl.Ticket[] queued = new AdmissionControl.Ticket[2];
+        for (int i = 0; i < queued.length; ++i) {
+            queued[i] = admission.new Ticket(new Object(), ColorServer.PRIORITY_BACKGROUND, chars,
+                    () -> ran.incrementAndGet(), () -> shed.incrementAndGet());
+            assertTrue(admission.admit(queued[i]));
+        }
+
+        // Bigger than the limits, shedding everything would not make it fit.
+        assertFalse(admission.admit(admission.new Ticket(new Object(), ColorServer.PRIORITY_HIGH, 4 * chars,
+                () -> {}, () -> {})));
+        assertEquals(0, shed.get());
+        assertEquals(2 * ticketBytes, admission.bytes());
+        for (AdmissionControl.Ticket ticket : queued) {
+            ticket.run();
+        }
+        assertEquals(2, ran.get());
+        assertEquals(0, admission.bytes());
+    }
+
+    @Test
+    public void testAdmissionControlCancelsClosedDocument() {
+        int chars = 100;
+        AdmissionControl admission = new AdmissionControl();
+        Object closed = new Object();
+        Object open = new Object();
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        Object[] documents = { closed, open, closed };
+        AdmissionControl.Ticket[] tickets = new AdmissionControl.Ticket[documents.length];
+        for (int i = 0; i < tickets.length; ++i) {
+            tickets[i] = admission.new Ticket(documents[i], ColorServer.PRIORITY_NORMAL, chars,
+                    () -> ran.incrementAndGet(), () -> shed.incrementAndGet());
+            assertTrue(admission.admit(tickets[i]));
+        }
+
+        admission.cancel(closed);
+        assertEquals(chars * AdmissionControl.BYTES_PER_CHAR, admission.bytes());
+        for (AdmissionControl.Ticket ticket : tickets) {
+            ticket.run();
+        }
+        // Nobody waits for the closed document's work, so no retry either.
+        assertEquals(1, ran.get());
+        assertEquals(0, shed.get());
+        assertEquals(0, admission.bytes());
+    }
+
+    @Test
+    public void testClosedQueueReleasesTickets() throws Exception {
+        int chars = 100;
+        AdmissionControl admission = new AdmissionControl();
+        RequestScheduler scheduler = new RequestScheduler(1);
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        try {
+            // Keeps the only worker busy so the client's work stays queued.
+            scheduler.newQueue().execute(admission.new Ticket(new Object(), ColorServer.PRIORITY_NORMAL, 0, () -> {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }, () -> {}));
+            assertTrue(busy.await(5, TimeUnit.SECONDS));
+            RequestScheduler.Queue client = scheduler.newQueue();
+            for (int i = 0; i < 3; ++i) {
+                AdmissionControl.Ticket ticket = admission.new Ticket(new Object(), ColorServer.PRIORITY_NORMAL,
+                        chars, () -> ran.incrementAndGet(), () -> {});
+                assertTrue(admission.admit(ticket));
+                client.execute(ticket);
+            }
+            assertEquals(3 * chars * AdmissionControl.BYTES_PER_CHAR, admission.bytes());
+
+            // What a disconnecting client's session does.
+            client.close();
+            assertEquals(0, admission.bytes());
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void testSharedMemoryRingRoundTrip() throws Exception {
+        Path file = Files.createTempFile("colorserver", ".shm");
+        try {
+            MappedByteBuffer buffer = SharedMemoryRing.map(file);
+            SharedMemoryRing ring = SharedMemoryRing.toServer(buffer, false);
+            ring.reset();
+            ring.outputStream().write(new byte[3]);
+            assertEquals(3, ring.inputStream().available());
+            ring.inputStream().readNBytes(3);
+            assertEquals(0, ring.inputStream().available());
+            // More than the capacity, so the ring has to wrap around several times.
+            byte[] data = new byte[SharedMemoryRing.CAPACITY * 3 + 12345];
+            new Random(1).nextBytes(data);
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = ring.outputStream();
+                    for (int offset = 0; offset < data.length; offset += 100000) {
+                        out.write(data, offset, Math.min(100000, data.length - offset));
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(ColorServerTest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            });
+            writer.start();
+
+            byte[] received = new byte[data.length];
+            new DataInputStream(ring.inputStream()).readFully(received);
+            writer.join();
+
+            assertArrayEquals(data, received);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testDocumentMirrorEdits() {
+        DocumentMirror mirror = new DocumentMirror(0, "0123456789");
+        StringBuilder expected = new StringBuilder("0123456789");
+        Random random = new Random(7);
+        for (int revision = 1; revision < 2000; ++revision) {
+            int offset = random.nextInt(expected.length() + 1);
+            if (random.nextInt(3) > 0 || expected.length() == 0) {
+                String inserted = Integer.toString(random.nextInt(100000));
+                mirror.insert(revision, offset, inserted);
+                expected.insert(offset, inserted);
+            } else {
+                int count = random.nextInt(Math.min(20, expected.length() - offset) + 1);
+                mirror.remove(revision, offset, count);
+                expected.delete(offset, offset + count);
+            }
+            assertEquals(expected.length(), mirror.length());
+        }
+        assertEquals(expected.toString(), mirror.getText(0, mirror.length()));
+        assertEquals(expected.substring(3, expected.length() / 2), mirror.getText(3, expected.length() / 2));
+    }
+
+    @Test
+    public void testDocumentMirrorTypingKeepsPiecesFew() {
+        DocumentMirror mirror = new DocumentMirror(0, "0123456789");
+        for (int i = 0; i < 1000; ++i) {
+            mirror.insert(i + 1, 5 + i, "a");
+        }
+        assertEquals(3, mirror.pieceCount());
+        assertEquals("34aa", mirror.getText(3, 7));
+        try {
+            mirror.remove(1001, 5, 2000);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals(1010, mirror.length());
+        }
+    }
+
+    @Test
+    public void testDocumentMirrorDirtyRanges() {
+        DocumentMirror mirror = new DocumentMirror(0, "");
+        mirror.insert(1, 0, "abcdefghij");
+        assertEquals(3, mirror.takeChunks(4).size());
+        assertTrue(mirror.takeChunks(4).isEmpty());
+        // Handed out at revision 1, stale after the next edit.
+        mirror.insert(2, 5, "xy");
+        assertFalse(mirror.completeIfCurrent(1, 0, 10));
+        assertEquals(1, mirror.takeChunks(100).size());
+        assertTrue(mirror.completeIfCurrent(2, 0, 12));
+        mirror.addDirty(2, 4);
+        assertArrayEquals(new int[] { 2, 4 }, mirror.takeChunks(100).get(0));
+    }
+
+    @Test
+    public void testDocumentMirrorChunkBudget() {
+        DocumentMirror mirror = new DocumentMirror(0, "abcdefghij");
+        mirror.addDirty(0, 10);
+        ArrayList<int[]> chunks = mirror.takeChunks(4, 6);
+        assertEquals(2, chunks.size());
+        assertArrayEquals(new int[] { 4, 6 }, chunks.get(1));
+        // The rest is handed out by a later call.
+        assertArrayEquals(new int[] { 6, 10 }, mirror.takeChunks(4, 6).get(0));
+        mirror.close();
+        mirror.addDirty(0, 10);
+        assertTrue(mirror.takeChunks(4).isEmpty());
+    }
+
+    @Test
+    public void testLargeMirrorStaysWithinDocumentLimit() throws Exception {
+        int chars = 4 * ColorServer.CHUNK_SIZE;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < chars) {
+            text.append("ab 12 ");
+        }
+        text.setLength(chars);
+        // Room for one chunk and a bit, the document is four times that.
+        AdmissionControl admission = new AdmissionControl(AdmissionControl.MAX_BYTES,
+                (ColorServer.CHUNK_SIZE + 100) * AdmissionControl.BYTES_PER_CHAR);
+        serverSocket = new ServerSocket(0);
+        serverSocket.setSoTimeout(5000);
+        ColorServer colorServer = new ColorServer(serverSocket.getLocalPort(), new VectorHighlighter());
+        colorServer.setAdmissionControl(admission);
+        Thread server = new Thread(colorServer::start);
+        server.start();
+        try (Socket client = serverSocket.accept()) {
+            client.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            ColorServer.readHello(in);
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(ColorServer.MESSAGE_OPEN);
+            out.writeUTF("path");
+            out.writeLong(1);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt(ColorServer.MESSAGE_HIGHLIGHT);
+            out.writeUTF("path");
+            out.writeLong(1);
+            out.writeInt(0);
+            out.writeInt(chars);
+            out.flush();
+
+            // Every chunk is colored in the end, none of them is shed.
+            int colored = 0;
+            while (colored < chars) {
+                assertEquals("path", in.readUTF());
+                assertEquals(1, in.readLong());
+                in.readLong();
+                in.readInt();
+                int count = in.readInt();
+                assertTrue(count >= 0);
+                in.readFully(new byte[count]);
+                colored += count / 3;
+            }
+            assertEquals(chars, colored);
+            out.writeInt(ColorServer.MESSAGE_CLOSE);
+            out.flush();
+            server.join(5000);
+            assertEquals(0, admission.bytes());
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testSelectorServerClients() throws Exception {
+        SelectorServer server = new SelectorServer(0, "vector", 2);
+        Thread serverThread = new Thread(server::run);
+        serverThread.start();
+        try {
+            Socket[] clients = new Socket[3];
+            for (int i = 0; i < clients.length; ++i) {
+                clients[i] = new Socket("127.0.0.1", server.getPort());
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream message = new DataOutputStream(bytes);
+                message.writeInt(ColorServer.MESSAGE_PRIORITY);
+                message.writeUTF("client" + i);
+                message.writeInt(ColorServer.PRIORITY_BACKGROUND + i % 2);
+                message.writeInt(ColorServer.MESSAGE_REQUEST);
+                message.writeUTF("client" + i);
+                message.writeLong(1);
+                message.writeInt(0);
+                message.writeUTF("ab" + i + " ");
+                OutputStream out = clients[i].getOutputStream();
+                if (i == 0) {
+                    // Messages cut into pieces must still be understood.
+                    for (byte b : bytes.toByteArray()) {
+                        out.write(b);
+                        out.flush();
+                    }
+                } else {
+                    out.write(bytes.toByteArray());
+                }
+            }
+            for (int i = 0; i < clients.length; ++i) {
+                clients[i].setSoTimeout(5000);
+                DataInputStream in = new DataInputStream(clients[i].getInputStream());
+                ColorServer.readHello(in);
+                assertEquals("client" + i, in.readUTF());
+                assertEquals(1, in.readLong());
+                // No MESSAGE_TRACE was sent.
+                assertEquals(0, in.readLong());
+                assertEquals(0, in.readInt());
+                byte[] colors = new byte[in.readInt()];
+                in.readFully(colors);
+                assertEquals(12, colors.length);
+                assertEquals(0, colors[2]);
+                assertEquals((byte) 255, colors[8]);
+                clients[i].close();
+            }
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testSelectorServerDropsBadClient() throws Exception {
+        SelectorServer server = new SelectorServer(0, "vector", 1);
+        Thread serverThread = new Thread(server::run);
+        serverThread.start();
+        try (Socket bad = new Socket("127.0.0.1", server.getPort());
+                Socket good = new Socket("127.0.0.1", server.getPort())) {
+            bad.setSoTimeout(5000);
+            ColorServer.readHello(new DataInputStream(bad.getInputStream()));
+            DataOutputStream out = new DataOutputStream(bad.getOutputStream());
+            out.writeInt(ColorServer.MESSAGE_OPEN);
+            out.writeUTF("path");
+            out.writeLong(1);
+            out.writeInt(-5);
+            out.flush();
+            assertEquals(-1, bad.getInputStream().read());
+
+            out = new DataOutputStream(good.getOutputStream());
+            out.writeInt(ColorServer.MESSAGE_REQUEST);
+            out.writeUTF("path");
+            out.writeLong(1);
+            out.writeInt(0);
+            out.writeUTF("ab 12");
+            out.flush();
+            good.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(good.getInputStream());
+            ColorServer.readHello(in);
+            assertEquals("path", in.readUTF());
+            assertEquals(1, in.readLong());
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testTokenFormatSpans() throws Exception {
+        SelectorServer server = new SelectorServer(0, "vector", 1);
+        Thread serverThread = new Thread(server::run);
+        serverThread.start();
+        try (Socket client = new Socket("127.0.0.1", server.getPort())) {
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            out.writeInt(ColorServer.MESSAGE_FORMAT);
+            out.writeInt(ColorServer.FORMAT_TOKENS);
+            out.writeInt(ColorServer.MESSAGE_TRACE);
+            out.writeLong(42);
+            out.writeInt(ColorServer.MESSAGE_REQUEST);
+            out.writeUTF("path");
+            out.writeLong(1);
+            out.writeInt(7);
+            out.writeUTF("ab 12");
+            out.flush();
+
+            client.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            ColorServer.readHello(in);
+            assertEquals("path", in.readUTF());
+            assertEquals(1, in.readLong());
+            assertEquals(42, in.readLong());
+            assertEquals(7, in.readInt());
+            assertEquals(ColorServer.RESPONSE_TOKENS, in.readInt());
+            int[] expected = { 2, ColorServer.TOKEN_TEXT, 1, ColorServer.TOKEN_WHITESPACE,
+                    2, ColorServer.TOKEN_NUMBER };
+            assertEquals(expected.length / 2, in.readInt());
+            for (int i = 0; i < expected.length; i += 2) {
+                assertEquals(expected[i], in.readInt());
+                assertEquals(expected[i + 1], in.readByte());
+            }
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testAnswersEchoRequestId() throws Exception {
+        SelectorServer server = new SelectorServer(0, "vector", 1);
+        Thread serverThread = new Thread(server::run);
+        serverThread.start();
+        try (Socket client = new Socket("127.0.0.1", server.getPort())) {
+            // Both batches arrive together, their mirror work is scheduled at once.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < 2; ++i) {
+                byte[] text = "ab 12".getBytes(StandardCharsets.UTF_8);
+                out.writeInt(ColorServer.MESSAGE_TRACE);
+                out.writeLong(10 + i);
+                out.writeInt(ColorServer.MESSAGE_OPEN);
+                out.writeUTF("path" + i);
+                out.writeLong(1);
+                out.writeInt(text.length);
+                out.write(text);
+                out.writeInt(ColorServer.MESSAGE_HIGHLIGHT);
+                out.writeUTF("path" + i);
+                out.writeLong(1);
+                out.writeInt(0);
+                out.writeInt(text.length);
+            }
+            client.getOutputStream().write(bytes.toByteArray());
+            client.getOutputStream().flush();
+
+            client.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            ColorServer.readHello(in);
+            for (int i = 0; i < 2; ++i) {
+                String path = in.readUTF();
+                assertEquals(1, in.readLong());
+                assertEquals(path.equals("path0") ? 10 : 11, in.readLong());
+                assertEquals(0, in.readInt());
+                in.readFully(new byte[in.readInt()]);
+            }
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testQueuedEventsCarryTheirRequestId() throws Exception {
+        ColorServer colorServer = new ColorServer(InputStream.nullInputStream(), new ByteArrayOutputStream(),
+                new VectorHighlighter());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < 2; ++i) {
+            byte[] text = "ab 12".getBytes(StandardCharsets.UTF_8);
+            out.writeInt(ColorServer.MESSAGE_TRACE);
+            out.writeLong(10 + i);
+            out.writeInt(ColorServer.MESSAGE_OPEN);
+            out.writeUTF("path" + i);
+            out.writeLong(1);
+            out.writeInt(text.length);
+            out.write(text);
+            out.writeInt(ColorServer.MESSAGE_HIGHLIGHT);
+            out.writeUTF("path" + i);
+            out.writeLong(1);
+            out.writeInt(0);
+            out.writeInt(text.length);
+        }
+        out.writeInt(ColorServer.MESSAGE_CLOSE);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Path file = Files.createTempFile("colorserver", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("colorserver.Queued");
+            recording.start();
+            while (colorServer.handleMessage(in.readInt(), in, Runnable::run)) {
+            }
+            // Both batches are scheduled together, as when they arrive at once.
+            colorServer.scheduleEditedMirrors(Runnable::run);
+            recording.stop();
+            recording.dump(file);
+
+            int events = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (!event.getEventType().getName().equals("colorserver.Queued")) {
+                    continue;
+                }
+                long expected = event.getString("path").equals("path0") ? 10 : 11;
+                assertEquals(expected, event.getLong("requestId"));
+                ++events;
+            }
+            assertEquals(2, events);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testReplayRecording() throws Exception {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        DataOutputStream message = new DataOutputStream(requests);
+        for (int start = 0; start < 10; start += 5) {
+            message.writeInt(ColorServer.MESSAGE_REQUEST);
+            message.writeUTF("path");
+            message.writeLong(1);
+            message.writeInt(start);
+            message.writeUTF("ab 12");
+        }
+        ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        message = new DataOutputStream(answer);
+        message.writeUTF("path");
+        message.writeLong(1);
+        message.writeLong(0);
+        message.writeInt(0);
+        message.writeInt(15);
+        message.write(new byte[15]);
+
+        Path file = Files.createTempFile("colorserver", ".rec");
+        SelectorServer server = new SelectorServer(0, "vector", 1);
+        Thread serverThread = new Thread(server::run);
+        serverThread.start();
+        try {
+            DataOutputStream recording = new DataOutputStream(Files.newOutputStream(file));
+            recording.writeInt(Replay.MAGIC);
+            recording.writeInt(Replay.VERSION);
+            // The first request is cut in two records.
+            byte[] bytes = requests.toByteArray();
+            int[][] records = { { Replay.TO_SERVER, 0, 0, 7 }, { Replay.TO_SERVER, 1000, 7, bytes.length } };
+            for (int[] record : records) {
+                recording.writeByte(record[0]);
+                recording.writeLong(record[1]);
+                recording.writeInt(record[3] - record[2]);
+                recording.write(bytes, record[2], record[3] - record[2]);
+            }
+            recording.writeByte(Replay.FROM_SERVER);
+            recording.writeLong(2_000_000);
+            recording.writeInt(answer.size());
+            recording.write(answer.toByteArray());
+            // A new server after a reconnect, its answer is not for the old request.
+            recording.writeByte(Replay.CONNECT);
+            recording.writeLong(3_000_000);
+            recording.writeInt(0);
+            recording.writeByte(Replay.FROM_SERVER);
+            recording.writeLong(4_000_000);
+            recording.writeInt(answer.size());
+            recording.write(answer.toByteArray());
+            recording.close();
+
+            Replay replay = new Replay(file);
+            assertEquals(2, replay.messageCount());
+            Socket socket = new Socket("127.0.0.1", server.getPort());
+            ColorServer.readHello(new DataInputStream(socket.getInputStream()));
+            Replay.Report report = replay.run(socket, 0);
+
+            assertEquals(2, report.messages);
+            assertEquals(2, report.answers);
+            assertEquals(2, report.latencies.length);
+            // Measured from the record that completed the first request.
+            assertArrayEquals(new long[] { 2_000_000 - 1000 }, report.recordedLatencies);
+        } finally {
+            server.close();
+            serverThread.join();
+            Files.delete(file);
+        }
     }
 }
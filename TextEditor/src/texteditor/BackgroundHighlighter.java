@@ -0,0 +1,61 @@
+package texteditor;
+
+import java.util.ArrayList;
+import javax.swing.Timer;
+
+/**
+ * Colors what the viewport requests leave out while the editor is idle.
+ * Every open document's uncolored text is asked for at background priority,
+ * one small batch at a time, and any interactive request puts it back to
+ * waiting.
+ */
+public class BackgroundHighlighter {
+    // Quiet time before the first batch, and the wait between batches.
+    private static final int IDLE_DELAY = 1000;
+    private static final int STEP_DELAY = 50;
+    private static final int BATCH_CHARS = 20000;
+
+    private final TextEditor parent;
+    private final Timer timer;
+    // Documents take turns, this one is asked first next time.
+    private int next;
+
+    public BackgroundHighlighter(TextEditor parent) {
+        this.parent = parent;
+        timer = new Timer(IDLE_DELAY, e -> step());
+        timer.setRepeats(false);
+    }
+
+    // Something interactive was sent, wait until it has been quiet again.
+    public void activity() {
+        timer.setInitialDelay(IDLE_DELAY);
+        timer.restart();
+    }
+
+    private void stepLater() {
+        timer.setInitialDelay(STEP_DELAY);
+        timer.restart();
+    }
+
+    private void step() {
+        if (!parent.isOpened()) {
+            return;
+        }
+        ArrayList<TextDocumentEditor> editors = parent.getEditors();
+        boolean answered = editors.stream().noneMatch(TextDocumentEditor::hasBackgroundRequest);
+        if (!answered || !parent.getRequestWriter().isIdle()) {
+            // The last batch is still on its way.
+            stepLater();
+            return;
+        }
+        for (int i = 0; i < editors.size(); ++i) {
+            int index = (next + i) % editors.size();
+            if (editors.get(index).sendBackgroundRequest(BATCH_CHARS) > 0) {
+                next = index + 1;
+                stepLater();
+                return;
+            }
+        }
+        // Everything is colored, the next interactive request starts over.
+    }
+}
@@ -0,0 +1,174 @@
+package texteditor;
+
+import java.util.Arrays;
+
+/**
+ * Foreground colors of a document kept outside the document model, as a
+ * run list: run i starts at starts[i], ends where run i + 1 starts and has
+ * the RGB color colors[i], a token type marked with TOKEN, or NONE. About
+ * 8 bytes per run of equal color. Must be told about every insert and
+ * remove to stay aligned with the text.
+ */
+public class ColorOverlay {
+    public static final int NONE = -1;
+    // Above any RGB value, the low bits are a token type to look up in the
+    // document's Theme when painting.
+    public static final int TOKEN = 1 << 24;
+
+    private int[] starts = new int[16];
+    private int[] colors = new int[16];
+    private int count;
+    private int length;
+
+    public synchronized int length() {
+        return length;
+    }
+
+    public synchronized int runCount() {
+        return count;
+    }
+
+    public synchronized int colorAt(int offset) {
+        return colors[runIndex(offset)];
+    }
+
+    // End of the run of equal color containing offset.
+    public synchronized int runEnd(int offset) {
+        int index = runIndex(offset);
+        return index + 1 < count ? starts[index + 1] : length;
+    }
+
+    // New text comes in uncolored.
+    public synchronized void insert(int offset, int insertLength) {
+        if (insertLength <= 0) {
+            return;
+        }
+        int index = split(offset);
+        for (int i = index; i < count; ++i) {
+            starts[i] += insertLength;
+        }
+        length += insertLength;
+        spliceAndMerge(index, index, new int[] { offset }, new int[] { NONE }, 1);
+    }
+
+    public synchronized void remove(int offset, int removeLength) {
+        if (removeLength <= 0) {
+            return;
+        }
+        int first = split(offset);
+        int last = split(offset + removeLength);
+        for (int i = last; i < count; ++i) {
+            starts[i] -= removeLength;
+        }
+        length -= removeLength;
+        spliceAndMerge(first, last, null, null, 0);
+    }
+
+    // Colors the chars from start on with 3 bytes (r, g, b) per char.
+    public synchronized void set(int start, byte[] rgb) {
+        int n = Math.min(rgb.length / 3, length - start);
+        if (n <= 0) {
+            return;
+        }
+        int[] newStarts = new int[n];
+        int[] newColors = new int[n];
+        int runs = 0;
+        for (int i = 0; i < n; ++i) {
+            int color = ((rgb[i * 3] & 0xFF) << 16) | ((rgb[i * 3 + 1] & 0xFF) << 8) | (rgb[i * 3 + 2] & 0xFF);
+            if (runs == 0 || newColors[runs - 1] != color) {
+                newStarts[runs] = start + i;
+                newColors[runs] = color;
+                ++runs;
+            }
+        }
+        int first = split(start);
+        int last = split(start + n);
+        spliceAndMerge(first, last, newStarts, newColors, runs);
+    }
+
+    // Spans of token types from start on, back to back.
+    public synchronized void setTokens(int start, int[] lengths, byte[] types) {
+        int[] newStarts = new int[lengths.length];
+        int[] newColors = new int[lengths.length];
+        int runs = 0;
+        int end = start;
+        for (int i = 0; i < lengths.length && end < length; ++i) {
+            int color = TOKEN | (types[i] & 0xFF);
+            if (runs == 0 || newColors[runs - 1] != color) {
+                newStarts[runs] = end;
+                newColors[runs] = color;
+                ++runs;
+            }
+            end = Math.min(length, end + lengths[i]);
+        }
+        if (end <= start) {
+            return;
+        }
+        int first = split(start);
+        int last = split(end);
+        spliceAndMerge(first, last, newStarts, newColors, runs);
+    }
+
+    public synchronized void clear(int start, int end) {
+        end = Math.min(end, length);
+        if (start >= end) {
+            return;
+        }
+        int first = split(start);
+        int last = split(end);
+        spliceAndMerge(first, last, new int[] { start }, new int[] { NONE }, 1);
+    }
+
+    // Index of the run containing offset.
+    private int runIndex(int offset) {
+        int index = Arrays.binarySearch(starts, 0, count, offset);
+        return index >= 0 ? index : -(index + 1) - 1;
+    }
+
+    // Makes offset a run boundary, returns the index of the run starting there.
+    private int split(int offset) {
+        if (offset >= length) {
+            return count;
+        }
+        int index = runIndex(offset);
+        if (starts[index] == offset) {
+            return index;
+        }
+        splice(index + 1, index + 1, new int[] { offset }, new int[] { colors[index] }, 1);
+        return index + 1;
+    }
+
+    // Replaces runs [first, last) with n new runs.
+    private void splice(int first, int last, int[] newStarts, int[] newColors, int n) {
+        int newCount = count - (last - first) + n;
+        if (newCount > starts.length) {
+            int capacity = Math.max(newCount, starts.length * 2);
+            starts = Arrays.copyOf(starts, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+        }
+        System.arraycopy(starts, last, starts, first + n, count - last);
+        System.arraycopy(colors, last, colors, first + n, count - last);
+        if (n > 0) {
+            System.arraycopy(newStarts, 0, starts, first, n);
+            System.arraycopy(newColors, 0, colors, first, n);
+        }
+        count = newCount;
+    }
+
+    // Same as splice, then joins the new runs with equal neighbours.
+    private void spliceAndMerge(int first, int last, int[] newStarts, int[] newColors, int n) {
+        splice(first, last, newStarts, newColors, n);
+        mergeAt(first + n);
+        mergeAt(first);
+    }
+
+    // Joins run index into the previous one when they have the same color.
+    private void mergeAt(int index) {
+        if (index <= 0 || index >= count || colors[index - 1] != colors[index]) {
+            return;
+        }
+        System.arraycopy(starts, index + 1, starts, index, count - index - 1);
+        System.arraycopy(colors, index + 1, colors, index, count - index - 1);
+        --count;
+    }
+}
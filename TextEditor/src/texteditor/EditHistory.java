@@ -0,0 +1,97 @@
+package texteditor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * The last edits of a document, so an answer for an older revision can be
+ * moved to where its text is now. Colors depend on each char alone, so
+ * chars no edit touched since keep the colors the answer has for them.
+ */
+public class EditHistory {
+    private static final int MAX_EDITS = 1000;
+
+    // The edit that made revision, length is negative for a remove.
+    private static class Edit {
+        final long revision;
+        final int offset;
+        final int length;
+
+        Edit(long revision, int offset, int length) {
+            this.revision = revision;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ArrayDeque<Edit> edits = new ArrayDeque<Edit>();
+    // Answers from this revision on can be mapped, older edits are forgotten.
+    private long since;
+
+    public void insert(long revision, int offset, int length) {
+        add(new Edit(revision, offset, length));
+    }
+
+    public void remove(long revision, int offset, int length) {
+        add(new Edit(revision, offset, -length));
+    }
+
+    private void add(Edit edit) {
+        if (edits.size() == MAX_EDITS) {
+            since = edits.poll().revision;
+        }
+        edits.add(edit);
+    }
+
+    // Where [start, end) at revision is now, as {from, to, now} pieces: chars
+    // from..to counted from start are at now on. Text edited since is left
+    // out. Null when the history does not reach back to revision.
+    public ArrayList<int[]> map(long revision, int start, int end) {
+        if (revision < since) {
+            return null;
+        }
+        ArrayList<int[]> pieces = new ArrayList<int[]>();
+        pieces.add(new int[] { 0, end - start, start });
+        for (Edit edit : edits) {
+            if (edit.revision <= revision) {
+                continue;
+            }
+            ArrayList<int[]> moved = new ArrayList<int[]>();
+            for (int[] piece : pieces) {
+                if (edit.length > 0) {
+                    insert(piece, edit.offset, edit.length, moved);
+                } else {
+                    remove(piece, edit.offset, -edit.length, moved);
+                }
+            }
+            pieces = moved;
+        }
+        return pieces;
+    }
+
+    private static void insert(int[] piece, int offset, int length, ArrayList<int[]> moved) {
+        int pieceEnd = piece[2] + piece[1] - piece[0];
+        if (offset <= piece[2]) {
+            moved.add(new int[] { piece[0], piece[1], piece[2] + length });
+        } else if (offset >= pieceEnd) {
+            moved.add(piece);
+        } else {
+            // Splits the piece, the inserted text is not part of the answer.
+            int split = piece[0] + offset - piece[2];
+            moved.add(new int[] { piece[0], split, piece[2] });
+            moved.add(new int[] { split, piece[1], offset + length });
+        }
+    }
+
+    private static void remove(int[] piece, int offset, int length, ArrayList<int[]> moved) {
+        int pieceEnd = piece[2] + piece[1] - piece[0];
+        if (piece[2] < offset) {
+            moved.add(new int[] { piece[0], piece[0] + Math.min(pieceEnd, offset) - piece[2], piece[2] });
+        }
+        int removedEnd = offset + length;
+        if (pieceEnd > removedEnd) {
+            int from = Math.max(piece[2], removedEnd);
+            moved.add(new int[] { piece[0] + from - piece[2], piece[1], from - length });
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package texteditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Runs the ColorServer on a thread of this JVM and talks to it through
+ * in-memory pipes, no second JVM and no socket. A crash inside libColor
+ * would take the editor and its unsaved buffers down with it, so only the
+ * vector engine runs here unless texteditor.embedded.unsafe=true. The
+ * editor then needs --add-modules jdk.incubator.vector.
+ */
+public class EmbeddedTransport implements Transport {
+    private static final String COLOR_SERVER_JAR = "../ColorServer/dist/ColorServer.jar";
+    private static final String UNSAFE_OPT_IN = "texteditor.embedded.unsafe";
+    // Loaded once per JVM, libColor can only be bound to a single class loader.
+    private static Method entryPoint;
+
+    private InProcessPipe toServer;
+    private InProcessPipe fromServer;
+    private Thread serverThread;
+
+    private static synchronized Method entryPoint() throws IOException {
+        if (entryPoint != null) {
+            return entryPoint;
+        }
+        try {
+            Class<?> serverClass;
+            try {
+                serverClass = Class.forName("colorserver.ColorServer");
+            } catch (ClassNotFoundException ex) {
+                URL jar = new File(COLOR_SERVER_JAR).toURI().toURL();
+                serverClass = Class.forName("colorserver.ColorServer", true,
+                        new URLClassLoader(new URL[] { jar }, EmbeddedTransport.class.getClassLoader()));
+            }
+            entryPoint = serverClass.getMethod("runEmbedded",
+                    InputStream.class, OutputStream.class, String.class);
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            throw new IOException("ColorServer is not available: " + ex.getMessage(), ex);
+        }
+        return entryPoint;
+    }
+
+    @Override
+    public String serverArguments() {
+        return "";
+    }
+
+    @Override
+    public boolean needsServerProcess() {
+        return false;
+    }
+
+    @Override
+    public void accept() throws IOException {
+        disconnect();
+        final String highlighter = highlighter();
+        Method run = entryPoint();
+        toServer = new InProcessPipe();
+        fromServer = new InProcessPipe();
+        final InputStream serverIn = toServer.inputStream();
+        final InProcessPipe replies = fromServer;
+        final OutputStream serverOut = replies.outputStream();
+        serverThread = new Thread(() -> {
+            try {
+                run.invoke(null, serverIn, serverOut, highlighter);
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                System.out.println("Embedded ColorServer failed, ex = " + ex.getMessage());
+            } finally {
+                replies.close();
+            }
+        }, "ColorServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    // texteditor.highlighter, vector when not set.
+    private static String highlighter() throws IOException {
+        String name = System.getProperty("texteditor.highlighter", "vector");
+        if (!name.equals("vector") && !Boolean.getBoolean(UNSAFE_OPT_IN)) {
+            throw new IOException("The " + name + " engine can terminate the editor, set "
+                    + UNSAFE_OPT_IN + "=true to embed it anyway");
+        }
+        if (name.equals("vector") && ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            throw new IOException("Embedded mode needs --add-modules jdk.incubator.vector");
+        }
+        return name;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return fromServer.inputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toServer.outputStream();
+    }
+
+    @Override
+    public boolean isConnectionClosed() {
+        return serverThread == null || !serverThread.isAlive() || toServer.isClosed();
+    }
+
+    @Override
+    public void disconnect() {
+        if (toServer != null) {
+            toServer.close();
+            fromServer.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+}
@@ -0,0 +1,37 @@
+package texteditor;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.StyledEditorKit;
+import javax.swing.text.ViewFactory;
+
+/**
+ * Styled editor kit with the view tweaks the highlighting modes need.
+ */
+// Never serialized.
+@SuppressWarnings("serial")
+public class HighlightEditorKit extends StyledEditorKit {
+    private final boolean largeFile;
+    private final boolean overlay;
+
+    // largeFile draws the whole document with one LargeFileView instead of a
+    // view per line, so huge documents show up without being laid out.
+    // overlay paints text in the colors of the document's ColorOverlay property.
+    public HighlightEditorKit(boolean largeFile, boolean overlay) {
+        this.largeFile = largeFile;
+        this.overlay = overlay;
+    }
+
+    @Override
+    public ViewFactory getViewFactory() {
+        ViewFactory styled = super.getViewFactory();
+        return elem -> {
+            if (largeFile && AbstractDocument.SectionElementName.equals(elem.getName())) {
+                return new LargeFileView(elem);
+            }
+            if (overlay && AbstractDocument.ContentElementName.equals(elem.getName())) {
+                return new OverlayLabelView(elem);
+            }
+            return styled.create(elem);
+        };
+    }
+}
@@ -0,0 +1,123 @@
+package texteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One-way in-memory byte pipe between two threads. Unlike PipedInputStream it
+ * does not poll, does not care which thread wrote last and grows instead of
+ * blocking the writer.
+ */
+public class InProcessPipe {
+    private byte[] buffer = new byte[64 * 1024];
+    private int readPosition;
+    private int count;
+    private boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return InProcessPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (InProcessPipe.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            InProcessPipe.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            InProcessPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            InProcessPipe.this.close();
+        }
+    };
+
+    public InputStream inputStream() {
+        return inputStream;
+    }
+
+    public OutputStream outputStream() {
+        return outputStream;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Pipe closed");
+        }
+        if (count + len > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, count + len)];
+            copyOut(grown, 0, count);
+            buffer = grown;
+            readPosition = 0;
+        }
+        int writePosition = (readPosition + count) % buffer.length;
+        int firstPart = Math.min(len, buffer.length - writePosition);
+        System.arraycopy(b, off, buffer, writePosition, firstPart);
+        System.arraycopy(b, off + firstPart, buffer, 0, len - firstPart);
+        count += len;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (count == 0 && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        int n = Math.min(len, count);
+        copyOut(b, off, n);
+        readPosition = (readPosition + n) % buffer.length;
+        count -= n;
+        return n;
+    }
+
+    // Copies n bytes from the read position without consuming them.
+    private void copyOut(byte[] b, int off, int n) {
+        int firstPart = Math.min(n, buffer.length - readPosition);
+        System.arraycopy(buffer, readPosition, b, off, firstPart);
+        System.arraycopy(buffer, 0, b, off + firstPart, n - firstPart);
+    }
+}
@@ -0,0 +1,50 @@
+package texteditor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.StyleContext;
+
+/**
+ * Styled document over a MappedContent, for files too big to copy onto the heap.
+ */
+// Never serialized, a mapped file would not survive it anyway.
+@SuppressWarnings("serial")
+public class LargeFileDocument extends DefaultStyledDocument {
+    // Element updates copy the text they scan, so the file is added in slices.
+    private static final int LOAD_CHUNK = 1 << 20;
+
+    private final MappedContent content;
+
+    public LargeFileDocument(Path path) throws IOException {
+        this(new MappedContent(path));
+    }
+
+    private LargeFileDocument(MappedContent content) {
+        super(content, new StyleContext());
+        this.content = content;
+    }
+
+    // Appends the whole file to the document, firing one insert per slice.
+    public void load() {
+        for (int loaded = 0; loaded < content.fileLength(); loaded += LOAD_CHUNK) {
+            int length = Math.min(LOAD_CHUNK, content.fileLength() - loaded);
+            writeLock();
+            try {
+                int offset = getLength();
+                content.insertMapped(offset, loaded, length);
+                DefaultDocumentEvent e = new DefaultDocumentEvent(offset, length,
+                        DocumentEvent.EventType.INSERT);
+                insertUpdate(e, null);
+                e.end();
+                fireInsertUpdate(e);
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                writeUnlock();
+            }
+        }
+    }
+}
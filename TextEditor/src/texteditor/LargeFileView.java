@@ -0,0 +1,279 @@
+package texteditor;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LayeredHighlighter;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.StyledDocument;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+
+/**
+ * View of a whole document that keeps no view per line, for large-file mode.
+ * Lines are all one font high and drawn straight from the paragraph elements
+ * on paint, in the colors of the document's ColorOverlay. Text is read and
+ * measured in slices, so a long line is only read as far as it is visible.
+ *
+ * The preferred width is that of the longest line added so far, counting a
+ * tab as a full tab stop. It never shrinks.
+ */
+public class LargeFileView extends View implements TabExpander {
+    // Chars read and measured at a time.
+    private static final int SLICE = 4096;
+
+    private final Segment segment = new Segment();
+    private Font font;
+    private FontMetrics metrics;
+    private int tabSize;
+    private int tabBase;
+    private int longestColumns;
+
+    public LargeFileView(Element elem) {
+        super(elem);
+    }
+
+    private void updateMetrics() {
+        Component c = getContainer();
+        Font f = ((StyledDocument) getDocument()).getFont(getAttributes());
+        if (c != null && f != font) {
+            font = f;
+            metrics = c.getFontMetrics(f);
+        }
+        Object size = getDocument().getProperty(PlainDocument.tabSizeAttribute);
+        tabSize = size instanceof Integer ? (Integer) size : 8;
+    }
+
+    private int lineHeight() {
+        return metrics.getHeight();
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        updateMetrics();
+        if (metrics == null) {
+            return 0;
+        }
+        if (axis == X_AXIS) {
+            // One more for the caret at the end of the longest line.
+            return longestColumns * metrics.charWidth('m') + 1;
+        }
+        return (float) getElement().getElementCount() * lineHeight();
+    }
+
+    @Override
+    public float nextTabStop(float x, int tabOffset) {
+        int width = tabSize * metrics.charWidth('m');
+        if (width == 0) {
+            return x;
+        }
+        int tabs = ((int) x - tabBase) / width;
+        return tabBase + (tabs + 1) * width;
+    }
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        updateMetrics();
+        Rectangle alloc = a.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = alloc;
+        }
+        tabBase = alloc.x;
+        JTextComponent host = (JTextComponent) getContainer();
+        Highlighter h = host.getHighlighter();
+        ColorOverlay overlay = (ColorOverlay) getDocument().getProperty(ColorOverlay.class);
+        Theme theme = (Theme) getDocument().getProperty(Theme.class);
+        Color fg = host.isEnabled()
+                ? ((StyledDocument) getDocument()).getForeground(getAttributes())
+                : host.getDisabledTextColor();
+        g.setFont(font);
+        Element root = getElement();
+        int first = Math.max(0, (clip.y - alloc.y) / lineHeight());
+        int last = Math.min(root.getElementCount() - 1, (clip.y + clip.height - alloc.y) / lineHeight());
+        for (int line = first; line <= last; ++line) {
+            Element paragraph = root.getElement(line);
+            int p0 = paragraph.getStartOffset();
+            // Leaves the newline out.
+            int p1 = paragraph.getEndOffset() - 1;
+            if (h instanceof LayeredHighlighter) {
+                ((LayeredHighlighter) h).paintLayeredHighlights(g, p0, p1 + 1, a, host, this);
+            }
+            float x = alloc.x;
+            int y = alloc.y + line * lineHeight() + metrics.getAscent();
+            for (int start = p0; start < p1 && x < clip.x + clip.width; ) {
+                int end = Math.min(p1, start + SLICE);
+                int color = ColorOverlay.NONE;
+                if (overlay != null && start < overlay.length()) {
+                    end = Math.min(end, overlay.runEnd(start));
+                    color = overlay.colorAt(start);
+                }
+                if (color == ColorOverlay.NONE || !host.isEnabled()) {
+                    g.setColor(fg);
+                } else if ((color & ColorOverlay.TOKEN) != 0) {
+                    g.setColor((theme != null ? theme : Theme.LIGHT).color(color & 0xFF));
+                } else {
+                    g.setColor(new Color(color));
+                }
+                if (!read(start, end)) {
+                    break;
+                }
+                x = Utilities.drawTabbedText(segment, x, y, (Graphics2D) g, this, start);
+                start = end;
+            }
+        }
+    }
+
+    private boolean read(int start, int end) {
+        try {
+            getDocument().getText(start, end - start, segment);
+            return true;
+        } catch (BadLocationException ex) {
+            return false;
+        }
+    }
+
+    // Where text from p0 to p1 ends when it starts at x.
+    private float advance(int p0, int p1, float x) throws BadLocationException {
+        for (int start = p0; start < p1; start += SLICE) {
+            int end = Math.min(p1, start + SLICE);
+            getDocument().getText(start, end - start, segment);
+            x += Utilities.getTabbedTextWidth(segment, metrics, x, this, start);
+        }
+        return x;
+    }
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        updateMetrics();
+        Rectangle alloc = a.getBounds();
+        tabBase = alloc.x;
+        Element root = getElement();
+        int line = root.getElementIndex(pos);
+        Element paragraph = root.getElement(line);
+        int p0 = paragraph.getStartOffset();
+        if (pos < p0 || pos > paragraph.getEndOffset()) {
+            throw new BadLocationException("Invalid position", pos);
+        }
+        int x = (int) advance(p0, Math.min(pos, paragraph.getEndOffset() - 1), alloc.x);
+        return new Rectangle(x, alloc.y + line * lineHeight(), 1, lineHeight());
+    }
+
+    @Override
+    public int viewToModel(float fx, float fy, Shape a, Position.Bias[] bias) {
+        updateMetrics();
+        bias[0] = Position.Bias.Forward;
+        Rectangle alloc = a.getBounds();
+        tabBase = alloc.x;
+        Element root = getElement();
+        int line = (int) Math.max(0, Math.min(root.getElementCount() - 1, (fy - alloc.y) / lineHeight()));
+        Element paragraph = root.getElement(line);
+        int p1 = paragraph.getEndOffset() - 1;
+        float x = alloc.x;
+        for (int start = paragraph.getStartOffset(); start < p1; start += SLICE) {
+            int end = Math.min(p1, start + SLICE);
+            if (!read(start, end)) {
+                break;
+            }
+            float width = Utilities.getTabbedTextWidth(segment, metrics, x, this, start);
+            if (fx < x + width) {
+                return start + nearestOffset(fx, x, start);
+            }
+            x += width;
+        }
+        return p1;
+    }
+
+    // The char boundary in segment nearest to fx, when segment starts at x.
+    // Measured the way modelToView measures, so the two agree.
+    private int nearestOffset(float fx, float x, int start) {
+        int count = segment.count;
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (x + prefixWidth(middle, x, start) <= fx) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (low < count && x + prefixWidth(low + 1, x, start) - fx < fx - x - prefixWidth(low, x, start)) {
+            ++low;
+        }
+        segment.count = count;
+        return low;
+    }
+
+    private float prefixWidth(int chars, float x, int start) {
+        int count = segment.count;
+        segment.count = chars;
+        float width = Utilities.getTabbedTextWidth(segment, metrics, x, this, start);
+        segment.count = count;
+        return width;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        Element root = getElement();
+        int line = root.getElementIndex(e.getOffset());
+        int tabs = 0;
+        // Only the inserted text is read, other tabs on its lines count as chars.
+        for (int start = e.getOffset(); start < e.getOffset() + e.getLength(); start += SLICE) {
+            if (!read(start, Math.min(e.getOffset() + e.getLength(), start + SLICE))) {
+                break;
+            }
+            for (int i = 0; i < segment.count; ++i) {
+                char c = segment.array[segment.offset + i];
+                if (c == '\t') {
+                    ++tabs;
+                } else if (c == '\n') {
+                    lineAdded(root.getElement(line++), tabs);
+                    tabs = 0;
+                }
+            }
+        }
+        lineAdded(root.getElement(line), tabs);
+        changed();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        // Removing a newline joins two lines.
+        lineAdded(getElement().getElement(getElement().getElementIndex(e.getOffset())), 0);
+        changed();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        changed();
+    }
+
+    private void lineAdded(Element paragraph, int tabs) {
+        updateMetrics();
+        int chars = paragraph.getEndOffset() - paragraph.getStartOffset() - 1;
+        longestColumns = Math.max(longestColumns, chars + tabs * (tabSize - 1));
+    }
+
+    private void changed() {
+        preferenceChanged(null, true, true);
+        Component c = getContainer();
+        if (c != null) {
+            c.repaint();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package texteditor;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Document content backed by a read-only memory-mapped file plus a piece
+ * table for edits, so the file text never has to live on the heap. The file
+ * is read as UTF-8, decoded lazily from the nearest checkpoint on every
+ * getChars, so it reads the same as it would as a String.
+ *
+ * The content starts out empty, parts of the file are spliced in with
+ * insertMapped, in file chars. Edits are not written back to the file.
+ */
+public class MappedContent implements AbstractDocument.Content {
+    private static class Piece {
+        boolean mapped;
+        int start;
+        int length;
+
+        Piece(boolean mapped, int start, int length) {
+            this.mapped = mapped;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    // Chars between checkpoints, each getChars decodes at most this many
+    // chars it does not need.
+    private static final int CHECKPOINT = 1024;
+
+    private final MappedByteBuffer file;
+    private final CharsetDecoder decoder = newDecoder();
+    private final int fileChars;
+    // Char and byte offsets the decoder can restart from, about every
+    // CHECKPOINT chars.
+    private final int[] checkpointChars;
+    private final int[] checkpointBytes;
+    private final StringBuilder added = new StringBuilder();
+    private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+    // Offset of every piece, rebuilt lazily after edits.
+    private int[] pieceOffsets;
+    private int length;
+
+    public MappedContent(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() >= Integer.MAX_VALUE) {
+                throw new IOException("File is too large for a document: " + path);
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        // Every slice but the last decodes to at least CHECKPOINT - 1 chars,
+        // from at least as many bytes.
+        int[] chars = new int[file.capacity() / (CHECKPOINT - 1) + 2];
+        int[] bytes = new int[chars.length];
+        int count = 0;
+        int c = 0;
+        ByteBuffer in = file.duplicate();
+        CharBuffer out = CharBuffer.allocate(CHECKPOINT);
+        CharsetDecoder scan = newDecoder();
+        do {
+            chars[count] = c;
+            bytes[count++] = in.position();
+            out.clear();
+            scan.decode(in, out, true);
+            c += out.position();
+        } while (in.hasRemaining());
+        fileChars = c;
+        checkpointChars = Arrays.copyOf(chars, count);
+        checkpointBytes = Arrays.copyOf(bytes, count);
+        // The implied newline every Swing document ends with.
+        added.append('\n');
+        pieces.add(new Piece(false, 0, 1));
+        length = 1;
+    }
+
+    // Replaces malformed input the way new String(bytes, UTF_8) does.
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // Length of the decoded file in chars.
+    public int fileLength() {
+        return fileChars;
+    }
+
+    @Override
+    public synchronized Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        return createMark(offset);
+    }
+
+    @Override
+    public synchronized int length() {
+        return length;
+    }
+
+    // Splices length bytes of the file, starting at fileOffset, in at where.
+    public synchronized void insertMapped(int where, int fileOffset, int length) throws BadLocationException {
+        if (where < 0 || where >= this.length) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        pieces.add(split(where), new Piece(true, fileOffset, length));
+        this.length += length;
+        pieceOffsets = null;
+        marksInserted(where, length);
+    }
+
+    @Override
+    public synchronized UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        pieces.add(split(where), new Piece(false, added.length(), str.length()));
+        added.append(str);
+        length += str.length();
+        pieceOffsets = null;
+        marksInserted(where, str.length());
+        return null;
+    }
+
+    @Override
+    public synchronized UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || where + nitems >= length) {
+            throw new BadLocationException("Invalid remove", where);
+        }
+        int first = split(where);
+        int last = split(where + nitems);
+        pieces.subList(first, last).clear();
+        length -= nitems;
+        pieceOffsets = null;
+        marksRemoved(where, nitems);
+        return null;
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    @Override
+    public synchronized void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length) {
+            throw new BadLocationException("Invalid range", where + len);
+        }
+        // Never write into txt.array, it may point into another document's buffer.
+        char[] chars = new char[len];
+        int index = findPiece(where);
+        int skip = where - pieceOffsets[index];
+        int copied = 0;
+        while (copied < len) {
+            Piece piece = pieces.get(index++);
+            int n = Math.min(piece.length - skip, len - copied);
+            if (piece.mapped) {
+                decodeMapped(piece.start + skip, n, chars, copied);
+            } else {
+                added.getChars(piece.start + skip, piece.start + skip + n, chars, copied);
+            }
+            copied += n;
+            skip = 0;
+        }
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    // Decodes count file chars from offset into out at outOffset.
+    private void decodeMapped(int offset, int count, char[] out, int outOffset) {
+        int index = Arrays.binarySearch(checkpointChars, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        int skip = offset - checkpointChars[index];
+        // One char more, so a surrogate pair at the end is not held back.
+        char[] chars = new char[skip + count + 1];
+        decoder.reset();
+        decoder.decode(file.duplicate().position(checkpointBytes[index]), CharBuffer.wrap(chars), true);
+        System.arraycopy(chars, skip, out, outOffset, count);
+    }
+
+    private int findPiece(int offset) {
+        if (pieceOffsets == null) {
+            pieceOffsets = new int[pieces.size()];
+            int start = 0;
+            for (int i = 0; i < pieces.size(); ++i) {
+                pieceOffsets[i] = start;
+                start += pieces.get(i).length;
+            }
+        }
+        int low = 0;
+        int high = pieces.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (pieceOffsets[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // Makes offset a piece boundary, returns the index of the piece starting there.
+    private int split(int offset) {
+        if (offset == length) {
+            return pieces.size();
+        }
+        int index = findPiece(offset);
+        int skip = offset - pieceOffsets[index];
+        if (skip == 0) {
+            return index;
+        }
+        Piece piece = pieces.get(index);
+        pieces.add(index + 1, new Piece(piece.mapped, piece.start + skip, piece.length - skip));
+        piece.length = skip;
+        pieceOffsets = null;
+        return index + 1;
+    }
+
+    // Positions use GapContent's trick on a virtual gap: a mark stores its
+    // offset if it is before the gap and offset + gapLength otherwise, so an
+    // edit only touches the marks between the previous and the current edit
+    // position instead of every mark after it. Marks are sorted by index.
+    private class Mark extends WeakReference<StickyPosition> {
+        long index;
+
+        Mark(StickyPosition position, long index) {
+            super(position, unusedMarks);
+            this.index = index;
+        }
+    }
+
+    private class StickyPosition implements Position {
+        Mark mark;
+
+        @Override
+        public int getOffset() {
+            synchronized (MappedContent.this) {
+                return offsetOf(mark.index);
+            }
+        }
+    }
+
+    private final ReferenceQueue<StickyPosition> unusedMarks = new ReferenceQueue<StickyPosition>();
+    private final ArrayList<Mark> marks = new ArrayList<Mark>();
+    private int unusedMarkCount;
+    private long gapStart;
+    private long gapLength = 1L << 40;
+
+    private int offsetOf(long index) {
+        return (int) (index <= gapStart ? index : index - gapLength);
+    }
+
+    private Position createMark(int offset) {
+        while (unusedMarks.poll() != null) {
+            ++unusedMarkCount;
+        }
+        if (unusedMarkCount > Math.max(5, marks.size() / 10)) {
+            marks.removeIf(mark -> mark.get() == null);
+            unusedMarkCount = 0;
+        }
+        // Offset 0 never moves, anything else moves with inserts at its offset.
+        long index = (offset < gapStart || offset == 0) ? offset : offset + gapLength;
+        StickyPosition position = new StickyPosition();
+        position.mark = new Mark(position, index);
+        marks.add(upperBound(index), position.mark);
+        return position;
+    }
+
+    // First mark whose index is greater than index.
+    private int upperBound(long index) {
+        int low = 0;
+        int high = marks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (marks.get(middle).index <= index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Moves the gap to newStart, afterwards every mark at or after newStart
+    // (except marks at 0) is behind the gap.
+    private void moveGap(long newStart) {
+        if (newStart <= gapStart) {
+            for (int i = upperBound(Math.max(newStart, 1) - 1); i < marks.size(); ++i) {
+                Mark mark = marks.get(i);
+                if (mark.index > gapStart) {
+                    break;
+                }
+                mark.index += gapLength;
+            }
+        } else {
+            for (int i = upperBound(gapStart); i < marks.size(); ++i) {
+                Mark mark = marks.get(i);
+                if (mark.index >= newStart + gapLength) {
+                    break;
+                }
+                mark.index -= gapLength;
+            }
+        }
+        gapStart = newStart;
+        if (newStart == 0) {
+            for (int i = upperBound(0); i < marks.size() && marks.get(i).index == gapLength; ++i) {
+                marks.get(i).index = 0;
+            }
+        }
+    }
+
+    private void marksInserted(int where, int length) {
+        moveGap(where);
+        gapStart += length;
+        gapLength -= length;
+    }
+
+    private void marksRemoved(int where, int length) {
+        moveGap(where);
+        long gapEnd = gapStart + gapLength;
+        gapLength += length;
+        // Marks inside the removed text collapse onto where.
+        for (int i = upperBound(gapEnd - 1); i < marks.size(); ++i) {
+            Mark mark = marks.get(i);
+            if (mark.index >= gapEnd + length) {
+                break;
+            }
+            mark.index = gapEnd + length;
+        }
+    }
+}
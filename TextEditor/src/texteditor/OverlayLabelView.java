@@ -0,0 +1,65 @@
+package texteditor;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LabelView;
+import javax.swing.text.LayeredHighlighter;
+
+/**
+ * Label view painting its text in the colors of the document's ColorOverlay,
+ * one glyph run per run of equal color. Token types are colored by the
+ * document's Theme.
+ */
+public class OverlayLabelView extends LabelView {
+    public OverlayLabelView(Element elem) {
+        super(elem);
+    }
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        ColorOverlay overlay = (ColorOverlay) getDocument().getProperty(ColorOverlay.class);
+        Component c = getContainer();
+        if (overlay == null || !(c instanceof JTextComponent) || !c.isEnabled()) {
+            super.paint(g, a);
+            return;
+        }
+        checkPainter();
+        int p0 = getStartOffset();
+        int p1 = Math.min(getEndOffset(), overlay.length());
+        Rectangle alloc = (a instanceof Rectangle) ? (Rectangle) a : a.getBounds();
+        Color bg = getBackground();
+        if (bg != null) {
+            g.setColor(bg);
+            g.fillRect(alloc.x, alloc.y, alloc.width, alloc.height);
+        }
+        JTextComponent tc = (JTextComponent) c;
+        if (tc.getHighlighter() instanceof LayeredHighlighter) {
+            ((LayeredHighlighter) tc.getHighlighter()).paintLayeredHighlights(g, p0, getEndOffset(), a, tc, this);
+        }
+        Color fg = getForeground();
+        Theme theme = (Theme) getDocument().getProperty(Theme.class);
+        for (int start = p0; start < p1; ) {
+            int end = Math.min(p1, overlay.runEnd(start));
+            int color = overlay.colorAt(start);
+            if (color == ColorOverlay.NONE) {
+                g.setColor(fg);
+            } else if ((color & ColorOverlay.TOKEN) != 0) {
+                g.setColor((theme != null ? theme : Theme.LIGHT).color(color & 0xFF));
+            } else {
+                g.setColor(new Color(color));
+            }
+            getGlyphPainter().paint(this, g, a, start, end);
+            start = end;
+        }
+        // The implied newline, or text the overlay has not heard of yet.
+        if (p1 < getEndOffset()) {
+            g.setColor(fg);
+            getGlyphPainter().paint(this, g, a, Math.max(p0, p1), getEndOffset());
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package texteditor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+/**
+ * Sends requests to the ColorServer from its own thread so the Swing thread
+ * never waits for the connection. Pending work is kept per document and
+ * coalesced, a newer request replaces an older unsent one, so the backlog
+ * stays bounded however slow the server is, or while it is still starting.
+ * Background requests only go out when no document has anything else to
+ * send.
+ */
+public class RequestWriter {
+    // Edit backlog above which the document is sent again as a whole.
+    private static final int MAX_EDITS = 1000;
+    private static final int MAX_EDIT_CHARS = 1 << 20;
+
+    // One insert or remove in delta mode, text is null for a remove.
+    public static class Edit {
+        final int messageType;
+        final long revision;
+        final int offset;
+        final int length;
+        final String text;
+
+        public Edit(int messageType, long revision, int offset, int length, String text) {
+            this.messageType = messageType;
+            this.revision = revision;
+            this.offset = offset;
+            this.length = length;
+            this.text = text;
+        }
+    }
+
+    // Ranges to color, taken at revision on the Swing thread.
+    private static class Request {
+        final long revision;
+        final ArrayList<TextDocumentEditor.Range> ranges;
+
+        Request(long revision, ArrayList<TextDocumentEditor.Range> ranges) {
+            this.revision = revision;
+            this.ranges = ranges;
+        }
+    }
+
+    private static class Pending {
+        // Delta mode: whether the server has the document, or has to get it again.
+        boolean opened;
+        boolean resync;
+        // Revision of the last whole text sent, older edits are part of it.
+        long openedRevision = -1;
+        ArrayDeque<Edit> edits = new ArrayDeque<Edit>();
+        int editChars;
+        Request request;
+        Request background;
+        // What the server was last told with MESSAGE_PRIORITY.
+        int sentPriority = TextEditor.PRIORITY_NORMAL;
+    }
+
+    private final TextEditor parent;
+    private final HashMap<TextDocumentEditor, Pending> pending = new HashMap<TextDocumentEditor, Pending>();
+    // Documents with something to send, in turn.
+    private final ArrayDeque<TextDocumentEditor> ready = new ArrayDeque<TextDocumentEditor>();
+    private final ArrayDeque<TextDocumentEditor> backgroundReady = new ArrayDeque<TextDocumentEditor>();
+    // Paths of closed documents to tell the server about.
+    private final ArrayDeque<String> closed = new ArrayDeque<String>();
+    private boolean closing;
+    private final boolean tokenFormat = "tokens".equals(System.getProperty("texteditor.colors"));
+    // The connection the format was asked for on, a new server has to be told again.
+    private DataOutputStream formatSentOn;
+    // Sent with MESSAGE_TRACE before every batch, only used by the writer thread.
+    private long nextRequestId = 1;
+    private Thread thread;
+
+    public RequestWriter(TextEditor parent) {
+        this.parent = parent;
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "RequestWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void request(TextDocumentEditor editor, long revision,
+            ArrayList<TextDocumentEditor.Range> ranges) {
+        pendingFor(editor).request = new Request(revision, ranges);
+        markReady(editor);
+    }
+
+    public synchronized void background(TextDocumentEditor editor, long revision,
+            ArrayList<TextDocumentEditor.Range> ranges) {
+        pendingFor(editor).background = new Request(revision, ranges);
+        if (!backgroundReady.contains(editor)) {
+            backgroundReady.add(editor);
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return ready.isEmpty() && backgroundReady.isEmpty();
+    }
+
+    public synchronized void edit(TextDocumentEditor editor, Edit edit) {
+        Pending state = pendingFor(editor);
+        if (!state.opened || state.resync) {
+            // The whole text goes out anyway.
+            state.resync = true;
+        } else if (state.edits.size() >= MAX_EDITS || state.editChars + edit.length > MAX_EDIT_CHARS) {
+            state.edits.clear();
+            state.editChars = 0;
+            state.resync = true;
+        } else {
+            state.edits.add(edit);
+            state.editChars += edit.length;
+        }
+        markReady(editor);
+    }
+
+    // Delta mode: sends the whole document again, e.g. to a new server.
+    public synchronized void resync(TextDocumentEditor editor) {
+        Pending state = pendingFor(editor);
+        state.edits.clear();
+        state.editChars = 0;
+        state.resync = true;
+        markReady(editor);
+    }
+
+    // The tab was closed, the server is told to drop its work.
+    public synchronized void remove(TextDocumentEditor editor) {
+        pending.remove(editor);
+        ready.remove(editor);
+        backgroundReady.remove(editor);
+        closed.add(editor.getFilePath());
+        notifyAll();
+    }
+
+    // The editor has a server now, what piled up can go out.
+    public synchronized void connected() {
+        notifyAll();
+    }
+
+    // Sends MESSAGE_CLOSE after whatever is queued, waits a moment for it.
+    public void close() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Pending pendingFor(TextDocumentEditor editor) {
+        return pending.computeIfAbsent(editor, e -> new Pending());
+    }
+
+    private void markReady(TextDocumentEditor editor) {
+        if (!ready.contains(editor)) {
+            ready.add(editor);
+            notifyAll();
+        }
+    }
+
+    // The first ready document of the highest priority, the selected tab
+    // usually. Must hold the lock.
+    private TextDocumentEditor mostUrgent() {
+        TextDocumentEditor urgent = null;
+        for (TextDocumentEditor editor : ready) {
+            if (urgent == null || editor.getPriority() > urgent.getPriority()) {
+                urgent = editor;
+            }
+        }
+        ready.remove(urgent);
+        return urgent;
+    }
+
+    private void run() {
+        while (true) {
+            TextDocumentEditor editor = null;
+            boolean resync = false;
+            ArrayList<Edit> edits = new ArrayList<Edit>();
+            Request request = null;
+            int priority = TextEditor.PRIORITY_NORMAL;
+            String closedPath;
+            synchronized (this) {
+                // Before the server connects requests pile up here, coalesced as usual.
+                while (!closing && (parent.getOutStream() == null
+                        || (ready.isEmpty() && backgroundReady.isEmpty() && closed.isEmpty()))) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (closing && parent.getOutStream() == null) {
+                    // Never connected, nobody to tell.
+                    return;
+                }
+                // Closed documents go first, the server can drop their work right away.
+                closedPath = closed.poll();
+                if (closedPath == null && ready.isEmpty() && closing) {
+                    break;
+                }
+                if (closedPath == null && ready.isEmpty()) {
+                    // Nothing more urgent to send.
+                    editor = backgroundReady.poll();
+                    Pending state = pending.get(editor);
+                    request = state.background;
+                    state.background = null;
+                    priority = TextEditor.PRIORITY_BACKGROUND;
+                    if (editor.isDeltaProtocol() && !state.opened) {
+                        // The server has no text to color yet.
+                        request = null;
+                    }
+                } else if (closedPath == null) {
+                    editor = mostUrgent();
+                    Pending state = pending.get(editor);
+                    resync = state.resync;
+                    edits.addAll(state.edits);
+                    final long openedRevision = state.openedRevision;
+                    edits.removeIf(edit -> edit.revision <= openedRevision);
+                    request = state.request;
+                    priority = editor.getPriority();
+                    state.resync = false;
+                    state.edits.clear();
+                    state.editChars = 0;
+                    state.request = null;
+                    if (resync) {
+                        state.opened = true;
+                    }
+                }
+            }
+            if (closedPath != null) {
+                writeClosed(closedPath);
+                continue;
+            }
+            try {
+                write(editor, resync, edits, request, priority);
+            } catch (IOException | BadLocationException ex) {
+                System.out.println("Error sending request, resend after reconnect. ex = " + ex.getMessage());
+                synchronized (this) {
+                    // Whatever the server had is gone with the connection.
+                    for (Pending state : pending.values()) {
+                        state.opened = false;
+                        state.sentPriority = TextEditor.PRIORITY_NORMAL;
+                    }
+                }
+            }
+        }
+        try {
+            DataOutputStream out = parent.getOutStream();
+            if (out != null) {
+                out.writeInt(TextEditor.MESSAGE_CLOSE);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.out.println("Sending close message failed. " + ex.getMessage());
+        }
+    }
+
+    private void write(TextDocumentEditor editor, boolean resync, ArrayList<Edit> edits, Request request,
+            int priority) throws IOException, BadLocationException {
+        DataOutputStream out = parent.getOutStream();
+        if (out == null) {
+            throw new IOException("Not connected");
+        }
+        if (tokenFormat && out != formatSentOn) {
+            out.writeInt(TextEditor.MESSAGE_FORMAT);
+            out.writeInt(TextEditor.FORMAT_TOKENS);
+            formatSentOn = out;
+        }
+        Document document = editor.textPane().getDocument();
+        String path = editor.getFilePath();
+        if (!resync && edits.isEmpty() && request == null) {
+            return;
+        }
+        Tracing.RequestSent event = new Tracing.RequestSent();
+        event.begin();
+        event.requestId = nextRequestId++;
+        out.writeInt(TextEditor.MESSAGE_TRACE);
+        out.writeLong(event.requestId);
+        // Mirror work is scheduled at the priority the edits came with.
+        writePriority(out, editor, path, priority);
+        if (resync) {
+            // Text and revision must match, so read them under the document's read lock.
+            long[] revision = new long[1];
+            String[] text = new String[1];
+            BadLocationException[] error = new BadLocationException[1];
+            document.render(() -> {
+                revision[0] = editor.getRevision();
+                try {
+                    text[0] = document.getText(0, document.getLength());
+                } catch (BadLocationException ex) {
+                    error[0] = ex;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            synchronized (this) {
+                Pending state = pending.get(editor);
+                if (state != null) {
+                    state.openedRevision = revision[0];
+                }
+            }
+            out.writeInt(TextEditor.MESSAGE_OPEN);
+            out.writeUTF(path);
+            out.writeLong(revision[0]);
+            writeLongUTF(out, text[0]);
+            // Already part of the text.
+            edits.removeIf(edit -> edit.revision <= revision[0]);
+            if (request == null) {
+                // The server only knows the text, not which parts still need colors.
+                SwingUtilities.invokeLater(editor::sendRequest);
+            }
+        }
+        for (Edit edit : edits) {
+            out.writeInt(edit.messageType);
+            out.writeUTF(path);
+            out.writeLong(edit.revision);
+            out.writeInt(edit.offset);
+            if (edit.text != null) {
+                writeLongUTF(out, edit.text);
+            } else {
+                out.writeInt(edit.length);
+            }
+        }
+        if (request != null) {
+            writeRequest(out, editor, document, path, request);
+        }
+        out.flush();
+        event.path = path;
+        event.revision = request != null ? request.revision : editor.getRevision();
+        event.priority = priority;
+        event.commit();
+    }
+
+    private void writeClosed(String path) {
+        DataOutputStream out = parent.getOutStream();
+        if (out == null) {
+            // No server, nothing to drop.
+            return;
+        }
+        try {
+            out.writeInt(TextEditor.MESSAGE_CLOSE_DOCUMENT);
+            out.writeUTF(path);
+            out.flush();
+        } catch (IOException ex) {
+            System.out.println("Error sending close document, ex = " + ex.getMessage());
+        }
+    }
+
+    private void writePriority(DataOutputStream out, TextDocumentEditor editor, String path, int priority)
+            throws IOException {
+        synchronized (this) {
+            Pending state = pending.get(editor);
+            if (state == null || state.sentPriority == priority) {
+                return;
+            }
+            state.sentPriority = priority;
+        }
+        out.writeInt(TextEditor.MESSAGE_PRIORITY);
+        out.writeUTF(path);
+        out.writeInt(priority);
+    }
+
+    private void writeRequest(DataOutputStream out, TextDocumentEditor editor, Document document,
+            String path, Request request) throws IOException, BadLocationException {
+        boolean delta = editor.isDeltaProtocol();
+        String[] texts = new String[request.ranges.size()];
+        boolean[] current = new boolean[1];
+        BadLocationException[] error = new BadLocationException[1];
+        document.render(() -> {
+            // Offsets are only valid at the revision they were taken at.
+            current[0] = editor.getRevision() == request.revision;
+            for (int i = 0; current[0] && !delta && i < texts.length; ++i) {
+                TextDocumentEditor.Range range = request.ranges.get(i);
+                try {
+                    texts[i] = document.getText(range.start, range.end - range.start);
+                } catch (BadLocationException ex) {
+                    error[0] = ex;
+                    return;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        if (!current[0]) {
+            // Text requests follow every edit, so a newer one is queued already.
+            // Delta edits do not ask for ranges, so ask again.
+            if (delta) {
+                SwingUtilities.invokeLater(editor::sendRequest);
+            }
+            return;
+        }
+        for (int i = 0; i < texts.length; ++i) {
+            TextDocumentEditor.Range range = request.ranges.get(i);
+            out.writeInt(delta ? TextEditor.MESSAGE_HIGHLIGHT : TextEditor.MESSAGE_REQUEST);
+            out.writeUTF(path);
+            out.writeLong(request.revision);
+            out.writeInt(range.start);
+            if (delta) {
+                out.writeInt(range.end);
+            } else {
+                out.writeUTF(texts[i]);
+            }
+        }
+    }
+
+    // Whole documents and pastes do not fit writeUTF's 64K limit.
+    private static void writeLongUTF(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
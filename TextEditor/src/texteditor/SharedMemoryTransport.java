@@ -0,0 +1,88 @@
+package texteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Memory-mapped file with one SharedMemoryRing per direction, the server is
+ * told the file path and maps it too.
+ */
+public class SharedMemoryTransport implements Transport {
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final SharedMemoryRing toServer;
+    private final SharedMemoryRing fromServer;
+    private boolean connected;
+    private volatile boolean closed;
+
+    public SharedMemoryTransport() throws IOException {
+        file = Files.createTempFile("colorserver", ".shm");
+        file.toFile().deleteOnExit();
+        buffer = SharedMemoryRing.map(file);
+        toServer = SharedMemoryRing.toServer(buffer, true);
+        fromServer = SharedMemoryRing.fromServer(buffer, true);
+        SharedMemoryRing.detach(buffer);
+    }
+
+    @Override
+    public String serverArguments() {
+        return "--transport=shm " + file.toAbsolutePath();
+    }
+
+    @Override
+    public boolean needsServerProcess() {
+        return true;
+    }
+
+    @Override
+    public void accept() throws IOException {
+        toServer.reset();
+        fromServer.reset();
+        SharedMemoryRing.detach(buffer);
+        connected = false;
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (!SharedMemoryRing.isAttached(buffer)) {
+            if (closed) {
+                throw new IOException("Transport closed");
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("ColorServer did not attach");
+            }
+            LockSupport.parkNanos(1_000_000L);
+        }
+        connected = true;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return fromServer.inputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toServer.outputStream();
+    }
+
+    @Override
+    public boolean isConnectionClosed() {
+        return !connected || toServer.isClosed();
+    }
+
+    @Override
+    public void disconnect() {
+        toServer.close();
+        fromServer.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        disconnect();
+        Files.deleteIfExists(file);
+    }
+}
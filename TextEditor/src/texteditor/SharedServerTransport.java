@@ -0,0 +1,68 @@
+package texteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects to a ColorServer started with --listen that serves many editors,
+ * instead of launching one for this editor. The address comes from
+ * texteditor.server as host:port.
+ */
+public class SharedServerTransport implements Transport {
+    private final String host;
+    private final int port;
+    private Socket socket;
+
+    public SharedServerTransport(String address) {
+        int colon = address.lastIndexOf(':');
+        host = colon < 0 ? "127.0.0.1" : address.substring(0, colon);
+        port = Integer.parseInt(address.substring(colon + 1));
+    }
+
+    @Override
+    public String serverArguments() {
+        return "";
+    }
+
+    @Override
+    public boolean needsServerProcess() {
+        return false;
+    }
+
+    @Override
+    public void accept() throws IOException {
+        disconnect();
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), (int) CONNECT_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnectionClosed() {
+        return socket == null || socket.isClosed();
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        disconnect();
+    }
+}
@@ -0,0 +1,64 @@
+package texteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Loopback TCP on a free port, the server is told the port number.
+ */
+public class TcpTransport implements Transport {
+    private ServerSocket serverSocket;
+    private Socket clientSocket;
+
+    public TcpTransport() throws IOException {
+        serverSocket = new ServerSocket(0);
+        serverSocket.setSoTimeout((int) CONNECT_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public String serverArguments() {
+        return String.valueOf(serverSocket.getLocalPort());
+    }
+
+    @Override
+    public boolean needsServerProcess() {
+        return true;
+    }
+
+    @Override
+    public void accept() throws IOException {
+        disconnect();
+        clientSocket = serverSocket.accept();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return clientSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return clientSocket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnectionClosed() {
+        return clientSocket == null || clientSocket.isClosed();
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        if (clientSocket != null) {
+            clientSocket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        disconnect();
+        serverSocket.close();
+    }
+}
@@ -1,20 +1,29 @@
 package texteditor;
 
 import java.awt.Color;
-import java.io.DataOutputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import static java.util.stream.Collectors.toCollection;
 import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
+import javax.swing.text.StyledDocument;
 
 public class TextDocumentEditor {
     private TextEditor parent;
@@ -43,7 +52,34 @@ public class TextDocumentEditor {
 
     }
     private ArrayList<Range> ranges;
-    private long documentRevision;
+    // Written under the document's write lock, read by the RequestWriter too.
+    private volatile long documentRevision;
+    // Maps answers for older revisions to the current text.
+    private EditHistory history = new EditHistory();
+    private DocumentListener documentListener;
+    // Large-file mode only, see openLargeFile.
+    private static final long LARGE_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int VIEWPORT_MARGIN = 16 * 1024;
+    private static final int EVICT_DISTANCE = 256 * 1024;
+    private static final int VIEWPORT_DELAY = 100;
+    // Wait before asking again when the server was too busy.
+    private static final int RETRY_DELAY = 500;
+    // Created on first use, not in the constructor.
+    private Timer retryTimer;
+    private boolean largeFile;
+    private ArrayList<Range> styled;
+    // Asked for at background priority and not answered yet, at documentRevision.
+    private ArrayList<Range> backgroundRequested;
+    private Timer viewportTimer;
+    // Colors live here instead of in character attributes when set.
+    private ColorOverlay overlay;
+    // texteditor.protocol=delta: the server keeps a copy of the document and
+    // only gets the edits.
+    private boolean deltaProtocol;
+    // PRIORITY_HIGH for the selected tab, PRIORITY_BACKGROUND for hidden ones.
+    private volatile int priority = TextEditor.PRIORITY_NORMAL;
+    // Colors for answers in token format.
+    private Theme theme = Theme.named(System.getProperty("texteditor.theme"));
 
     private void printRanges() {
 //        for (int i = 0; i < ranges.size(); ++i) {
@@ -55,33 +91,125 @@ public class TextDocumentEditor {
     public TextDocumentEditor(TextEditor parent, String path) {
         this.documentRevision = 0;
         this.ranges = new ArrayList<Range>();
+        this.styled = new ArrayList<Range>();
+        this.backgroundRequested = new ArrayList<Range>();
         this.parent = parent;
         text = new JTextPane();
         filePath = path;
         scrollArea = new JScrollPane(text);
+        deltaProtocol = "delta".equals(System.getProperty("texteditor.protocol"));
+        if (Boolean.getBoolean("texteditor.overlay")) {
+            installOverlay(false);
+        }
 
-        text.getDocument().addDocumentListener(new DocumentListener() {
+        documentListener = new DocumentListener() {
             @Override
             public void removeUpdate(DocumentEvent e) {
+                Tracing.Edit event = new Tracing.Edit();
+                event.begin();
                 ++documentRevision;
+                history.remove(documentRevision, e.getOffset(), e.getLength());
+                backgroundRequested.clear();
                 removeRange(e.getOffset(), e.getOffset() + e.getLength());
                 shiftRanges(e.getOffset() + e.getLength(), -e.getLength());
-                sendRequest();
+                if (overlay != null) {
+                    overlay.remove(e.getOffset(), e.getLength());
+                }
+                if (largeFile) {
+                    removeRange(styled, e.getOffset(), e.getOffset() + e.getLength());
+                    shiftRanges(styled, e.getOffset() + e.getLength(), -e.getLength());
+                }
+                if (deltaProtocol) {
+                    sendEdit(TextEditor.MESSAGE_REMOVE, e.getOffset(), e.getLength(), null);
+                } else {
+                    sendRequest();
+                }
+                commitEdit(event, e);
             }
 
             @Override
             public void insertUpdate(DocumentEvent e) {
+                Tracing.Edit event = new Tracing.Edit();
+                event.begin();
                 ++documentRevision;
+                history.insert(documentRevision, e.getOffset(), e.getLength());
+                backgroundRequested.clear();
                 shiftRanges(e.getOffset(), e.getLength());
                 addRange(e.getOffset(), e.getOffset() + e.getLength());
-                sendRequest();
+                if (overlay != null) {
+                    overlay.insert(e.getOffset(), e.getLength());
+                }
+                if (largeFile) {
+                    shiftRanges(styled, e.getOffset(), e.getLength());
+                }
+                if (deltaProtocol) {
+                    sendEdit(TextEditor.MESSAGE_INSERT, e.getOffset(), e.getLength(), insertedText(e));
+                } else {
+                    sendRequest();
+                }
+                commitEdit(event, e);
             }
 
             @Override public void changedUpdate(DocumentEvent arg0) {}
-        });
+        };
+        text.getDocument().addDocumentListener(documentListener);
+    }
+
+    // Big files go through large-file mode, everything else is read at once,
+    // as UTF-8 either way.
+    public void openFile(Path path) throws IOException {
+        if (Files.size(path) >= LARGE_FILE_SIZE) {
+            openLargeFile(path);
+        } else {
+            text.setText(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        }
+    }
+
+    // Large-file mode: the file is memory-mapped instead of read, and only
+    // the text around the viewport is requested and kept colored.
+    public void openLargeFile(Path path) throws IOException {
+        LargeFileDocument document = new LargeFileDocument(path);
+        largeFile = true;
+        // Mirroring would copy the whole file to the server, the viewport is requested as text.
+        deltaProtocol = false;
+        ranges.clear();
+        styled.clear();
+        text.setEditorKit(new HighlightEditorKit(true, true));
+        text.setDocument(document);
+        installOverlay(true);
+        document.addDocumentListener(documentListener);
+        if (viewportTimer == null) {
+            viewportTimer = new Timer(VIEWPORT_DELAY, e -> {
+                evictFarStyles();
+                sendRequest();
+            });
+            viewportTimer.setRepeats(false);
+            scrollArea.getViewport().addChangeListener(e -> viewportTimer.restart());
+        }
+        document.load();
+    }
+
+    // Paints colors from a ColorOverlay instead of storing them as character
+    // attributes, coloring no longer touches the document model.
+    private void installOverlay(boolean largeFile) {
+        if (!(text.getEditorKit() instanceof HighlightEditorKit)) {
+            text.setEditorKit(new HighlightEditorKit(largeFile, true));
+        }
+        overlay = new ColorOverlay();
+        overlay.insert(0, text.getDocument().getLength());
+        text.getDocument().putProperty(ColorOverlay.class, overlay);
+        text.getDocument().putProperty(Theme.class, theme);
+    }
+
+    public boolean isLargeFile() {
+        return largeFile;
     }
 
     public void removeRange(int start, int end) {
+        removeRange(ranges, start, end);
+    }
+
+    private void removeRange(ArrayList<Range> ranges, int start, int end) {
         int startIndex = Collections.binarySearch(ranges, start);
         int endIndex = Collections.binarySearch(ranges, end);
         if (startIndex >= 0 && startIndex == endIndex) {
@@ -129,6 +257,10 @@ public class TextDocumentEditor {
     }
 
     public void addRange(int start, int end) {
+        addRange(ranges, start, end);
+    }
+
+    private void addRange(ArrayList<Range> ranges, int start, int end) {
         int startIndex = Collections.binarySearch(ranges, start);
         int endIndex = Collections.binarySearch(ranges, end);
 
@@ -155,6 +287,10 @@ public class TextDocumentEditor {
     }
 
     public void shiftRanges(int start, int shift) {
+        shiftRanges(ranges, start, shift);
+    }
+
+    private void shiftRanges(ArrayList<Range> ranges, int start, int shift) {
         for (int i = 0; i < ranges.size(); ++i) {
             Range range = ranges.get(i);
             if (start <= range.start) {
@@ -200,49 +336,358 @@ public class TextDocumentEditor {
         }
     }
 
+    // Character range shown in the viewport, widened by margin on both sides.
+    private Range visibleRange(int margin) {
+        Rectangle visible = text.getVisibleRect();
+        Range range = new Range();
+        range.start = Math.max(0, text.viewToModel2D(new Point(visible.x, visible.y)) - margin);
+        range.end = Math.min(text.getDocument().getLength(), text.viewToModel2D(
+                new Point(visible.x + visible.width, visible.y + visible.height)) + margin);
+        return range;
+    }
+
+    private void clipRanges(ArrayList<Range> toClip, Range bounds) {
+        toClip.removeIf(range -> range.end <= bounds.start || range.start >= bounds.end);
+        for (Range range : toClip) {
+            range.start = Math.max(range.start, bounds.start);
+            range.end = Math.min(range.end, bounds.end);
+        }
+    }
+
+    // Drops the colors of regions scrolled far away, they are requested again
+    // when they come back into view.
+    private void evictFarStyles() {
+        if (!largeFile) {
+            return;
+        }
+        Range keep = visibleRange(EVICT_DISTANCE);
+        ArrayList<Range> far = styled.stream()
+                .map(range -> range.clone())
+                .collect(toCollection(ArrayList::new));
+        removeRange(far, keep.start, keep.end);
+        for (Range range : far) {
+            if (overlay != null) {
+                overlay.clear(range.start, range.end);
+            } else {
+                text.getStyledDocument().setCharacterAttributes(range.start, range.end - range.start,
+                        SimpleAttributeSet.EMPTY, true);
+            }
+            removeRange(styled, range.start, range.end);
+            addRange(range.start, range.end);
+        }
+    }
+
+    // Hands the dirty ranges to the RequestWriter, the text is read and sent
+    // from its thread.
     public void sendRequest() {
         if (!parent.isOpened()) {
             return;
         }
-        try {
-            ArrayList<Range> toSend = ranges.stream()
-                    .map(range -> range.clone())
-                    .collect(toCollection(ArrayList::new));
+        if (priority == TextEditor.PRIORITY_BACKGROUND) {
+            // Hidden, asked for when shown or by the background pass.
+            return;
+        }
+        ArrayList<Range> toSend = ranges.stream()
+                .map(range -> range.clone())
+                .collect(toCollection(ArrayList::new));
+        if (largeFile) {
+            clipRanges(toSend, visibleRange(VIEWPORT_MARGIN));
+        }
+        if (!deltaProtocol) {
             splitTooLongChunks(toSend, 5000);
+        }
+        traceRequest(toSend.size(), false);
+        parent.getRequestWriter().request(this, documentRevision, toSend);
+        parent.getBackgroundHighlighter().activity();
+    }
 
-            for (int i = 0; i < toSend.size(); ++i) {
-                Range range = toSend.get(i);
-                DataOutputStream out = parent.getOutStream();
-                out.writeInt(TextEditor.MESSAGE_REQUEST);
-                out.writeUTF(filePath);
-                out.writeLong(documentRevision);
-                out.writeInt(range.start);
-                out.writeUTF(text.getDocument().getText(range.start, range.end - range.start));
+    // Idle time: asks at background priority for up to maxChars of the
+    // uncolored text the viewport requests leave out, nearest to the viewport
+    // first. Returns the number of chars asked for.
+    public int sendBackgroundRequest(int maxChars) {
+        if (!parent.isOpened()) {
+            return 0;
+        }
+        ArrayList<Range> toSend = ranges.stream()
+                .map(range -> range.clone())
+                .collect(toCollection(ArrayList::new));
+        for (Range range : backgroundRequested) {
+            removeRange(toSend, range.start, range.end);
+        }
+        if (largeFile) {
+            // Colors further out would be evicted again right away.
+            clipRanges(toSend, visibleRange(EVICT_DISTANCE));
+            Range visible = visibleRange(VIEWPORT_MARGIN);
+            removeRange(toSend, visible.start, visible.end);
+            int center = (visible.start + visible.end) / 2;
+            toSend.sort(Comparator.comparingInt(range -> Math.min(
+                    Math.abs(range.start - center), Math.abs(range.end - center))));
+        }
+        int chars = 0;
+        for (int i = 0; i < toSend.size(); ++i) {
+            Range range = toSend.get(i);
+            if (chars + range.end - range.start > maxChars) {
+                range.end = range.start + maxChars - chars;
+                toSend.subList(i + 1, toSend.size()).clear();
             }
-        } catch (IOException | BadLocationException ex) {
-            System.out.println("Error sending request, retry. ex = " + ex.getMessage());
-            SwingUtilities.invokeLater(() -> { sendRequest(); });
+            chars += range.end - range.start;
+            addRange(backgroundRequested, range.start, range.end);
+        }
+        if (chars == 0) {
+            return 0;
         }
+        if (!deltaProtocol) {
+            splitTooLongChunks(toSend, 5000);
+        }
+        traceRequest(toSend.size(), true);
+        parent.getRequestWriter().background(this, documentRevision, toSend);
+        return chars;
+    }
+
+    public boolean hasBackgroundRequest() {
+        return !backgroundRequested.isEmpty();
+    }
+
+    // The server highlights inserted text on its own, so an edit costs its own size.
+    private void sendEdit(int messageType, int offset, int length, String inserted) {
+        if (!parent.isOpened()) {
+            return;
+        }
+        parent.getRequestWriter().edit(this,
+                new RequestWriter.Edit(messageType, documentRevision, offset, length, inserted));
+        if (priority != TextEditor.PRIORITY_BACKGROUND) {
+            parent.getBackgroundHighlighter().activity();
+        }
+    }
+
+    private void commitEdit(Tracing.Edit event, DocumentEvent e) {
+        event.path = filePath;
+        event.revision = documentRevision;
+        event.offset = e.getOffset();
+        event.length = e.getLength();
+        event.commit();
+    }
+
+    private void traceRequest(int rangeCount, boolean background) {
+        Tracing.RequestQueued event = new Tracing.RequestQueued();
+        event.path = filePath;
+        event.revision = documentRevision;
+        event.ranges = rangeCount;
+        event.background = background;
+        event.commit();
+    }
+
+    // Called under the document's write lock, so the text is still there.
+    private String insertedText(DocumentEvent e) {
+        try {
+            return e.getDocument().getText(e.getOffset(), e.getLength());
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // A new server knows nothing about this document.
+    public void resendAfterRestart() {
+        backgroundRequested.clear();
+        if (deltaProtocol && parent.isOpened()) {
+            parent.getRequestWriter().resync(this);
+        }
+        sendRequest();
+    }
+
+    // Must be called in Swing thread.
+    public void setActive(boolean active) {
+        int newPriority = active ? TextEditor.PRIORITY_HIGH : TextEditor.PRIORITY_BACKGROUND;
+        if (newPriority == priority) {
+            return;
+        }
+        priority = newPriority;
+        if (active) {
+            // Also moves the server's queued work for it ahead.
+            sendRequest();
+        }
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getRevision() {
+        return documentRevision;
+    }
+
+    public boolean isDeltaProtocol() {
+        return deltaProtocol;
+    }
+
+    // The server dropped the work for these chars to protect its memory.
+    // Must be called in Swing thread.
+    public void retryLater(long revision, int start, int length) {
+        if (revision < documentRevision) {
+            // Newer requests are on their way already.
+            return;
+        }
+        removeRange(backgroundRequested, start, start + length);
+        addRange(start, Math.min(start + length, text.getDocument().getLength()));
+        if (retryTimer == null) {
+            retryTimer = new Timer(RETRY_DELAY, e -> sendRequest());
+            retryTimer.setRepeats(false);
+        }
+        retryTimer.restart();
+    }
+
+    private void markColored(int start, int end) {
+        removeRange(start, end);
+        removeRange(backgroundRequested, start, end);
+        if (largeFile) {
+            addRange(styled, start, end);
+        }
+    }
+
+    // The parts of an outdated answer for [start, end) that no edit touched
+    // since and that have no newer colors yet, as {from, to, now}: chars
+    // from..to of the answer are at now on.
+    private ArrayList<int[]> stillValid(long revision, int start, int end) {
+        ArrayList<int[]> valid = new ArrayList<int[]>();
+        ArrayList<int[]> pieces = history.map(revision, start, end);
+        if (pieces == null) {
+            // Too old, newer requests are on their way.
+            return valid;
+        }
+        for (int[] piece : pieces) {
+            int pieceEnd = piece[2] + piece[1] - piece[0];
+            for (Range range : ranges) {
+                if (range.start >= pieceEnd) {
+                    break;
+                }
+                int from = Math.max(range.start, piece[2]);
+                int to = Math.min(range.end, pieceEnd);
+                if (from < to) {
+                    valid.add(new int[] { piece[0] + from - piece[2], piece[0] + to - piece[2], from });
+                }
+            }
+        }
+        return valid;
     }
 
     // Must be called in Swing thread.
     public void updateColors(long revision, int start, byte[] colors) {
         if (revision < documentRevision) {
-            // We've already sent another request.
+            // Typed on meanwhile, the rest of the answer is still good.
+            for (int[] piece : stillValid(revision, start, start + colors.length / 3)) {
+                updateColors(documentRevision, piece[2], Arrays.copyOfRange(colors, piece[0] * 3, piece[1] * 3));
+            }
+            return;
+        }
+        markColored(start, start + colors.length / 3);
+        if (overlay != null) {
+            overlay.set(start, colors);
+            text.repaint();
             return;
         }
-        removeRange(start, start + colors.length / 3);
         StyleContext sc = StyleContext.getDefaultStyleContext();
         AttributeSet as = text.getCharacterAttributes();
-        for (int i = 0; i < colors.length / 3; ++i) {
+        int count = colors.length / 3;
+        int runStart = 0;
+        for (int i = 1; i <= count; ++i) {
+            // One attribute change per run of equal colors, every change splits elements.
+            if (i < count && colors[i * 3] == colors[runStart * 3]
+                    && colors[i * 3 + 1] == colors[runStart * 3 + 1]
+                    && colors[i * 3 + 2] == colors[runStart * 3 + 2]) {
+                continue;
+            }
             as = sc.addAttribute(as,  StyleConstants.Foreground,
-                    new Color(colors[i * 3] & 0xFF,
-                            colors[i * 3 + 1] & 0xFF,
-                            colors[i * 3 + 2] & 0xFF));
-            text.getStyledDocument().setCharacterAttributes(start + i, 1, as, true);
+                    new Color(colors[runStart * 3] & 0xFF,
+                            colors[runStart * 3 + 1] & 0xFF,
+                            colors[runStart * 3 + 2] & 0xFF));
+            text.getStyledDocument().setCharacterAttributes(start + runStart, i - runStart, as, true);
+            runStart = i;
+        }
+    }
+
+    // Token format: spans of token types from start on, back to back.
+    // Must be called in Swing thread.
+    public void updateTokens(long revision, int start, int[] lengths, byte[] types) {
+        int end = start;
+        for (int length : lengths) {
+            end += length;
+        }
+        if (revision < documentRevision) {
+            for (int[] piece : stillValid(revision, start, end)) {
+                updateTokens(documentRevision, piece[2], lengths, types, piece[0], piece[1]);
+            }
+            return;
+        }
+        end = Math.min(end, text.getDocument().getLength());
+        markColored(start, end);
+        if (overlay != null) {
+            overlay.setTokens(start, lengths, types);
+            text.repaint();
+            return;
+        }
+        int spanStart = start;
+        for (int i = 0; i < lengths.length && spanStart < end; ++i) {
+            int length = Math.min(lengths[i], end - spanStart);
+            text.getStyledDocument().setCharacterAttributes(spanStart, length, theme.attributes(types[i]), true);
+            spanStart += length;
+        }
+    }
+
+    // Chars from..to of the spans, at start.
+    private void updateTokens(long revision, int start, int[] lengths, byte[] types, int from, int to) {
+        int first = 0;
+        int firstStart = 0;
+        while (firstStart + lengths[first] <= from) {
+            firstStart += lengths[first++];
+        }
+        int last = first;
+        int lastEnd = firstStart;
+        while (lastEnd < to) {
+            lastEnd += lengths[last++];
+        }
+        int[] cut = Arrays.copyOfRange(lengths, first, last);
+        cut[0] -= from - firstStart;
+        cut[cut.length - 1] -= lastEnd - to;
+        updateTokens(revision, start, cut, Arrays.copyOfRange(types, first, last));
+    }
+
+    // Recolors what came in token format, the server is not involved.
+    // Must be called in Swing thread.
+    public void setTheme(Theme theme) {
+        this.theme = theme;
+        if (overlay != null) {
+            text.getDocument().putProperty(Theme.class, theme);
+            text.repaint();
+            return;
+        }
+        StyledDocument document = text.getStyledDocument();
+        ArrayList<Element> tokens = new ArrayList<Element>();
+        Element root = document.getDefaultRootElement();
+        for (int i = 0; i < root.getElementCount(); ++i) {
+            Element paragraph = root.getElement(i);
+            for (int j = 0; j < paragraph.getElementCount(); ++j) {
+                Element run = paragraph.getElement(j);
+                if (run.getAttributes().getAttribute(Theme.TOKEN_TYPE) != null) {
+                    tokens.add(run);
+                }
+            }
+        }
+        // Collected first, changing attributes replaces the elements.
+        for (Element run : tokens) {
+            int type = (Integer) run.getAttributes().getAttribute(Theme.TOKEN_TYPE);
+            document.setCharacterAttributes(run.getStartOffset(), run.getEndOffset() - run.getStartOffset(),
+                    theme.attributes(type), true);
         }
     }
 
+    public Theme getTheme() {
+        return theme;
+    }
+
     public JTextPane textPane() {
         return text;
     }
@@ -3,29 +3,70 @@ package texteditor;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import javax.swing.*;
 
-import java.net.*;
 import java.io.*;
+import java.nio.file.Paths;
 
 public class TextEditor {
     public final static int MESSAGE_REQUEST = 0;
     public final static int MESSAGE_CLOSE = 1;
+    public final static int MESSAGE_OPEN = 2;
+    public final static int MESSAGE_INSERT = 3;
+    public final static int MESSAGE_REMOVE = 4;
+    public final static int MESSAGE_HIGHLIGHT = 5;
+    // Path and priority for the document's requests from then on.
+    public final static int MESSAGE_PRIORITY = 6;
+    public final static int PRIORITY_BACKGROUND = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    public final static int PRIORITY_HIGH = 2;
+    // texteditor.colors=tokens asks for token types instead of RGB.
+    public final static int MESSAGE_FORMAT = 7;
+    public final static int FORMAT_TOKENS = 1;
+    // Path of a closed tab, the server drops its work.
+    public final static int MESSAGE_CLOSE_DOCUMENT = 8;
+    // Request id for the messages that follow, see Tracing. Answers echo it
+    // after the revision.
+    public final static int MESSAGE_TRACE = 9;
+    // The ColorServer writes these first when it connects.
+    public final static int HELLO = 0x434F4C53;
+    public final static int PROTOCOL_VERSION = 2;
+    // In place of the color count: the server was too busy, ask again later.
+    public final static int RESPONSE_RETRY = -1;
+    // In place of the color count: span count, then per span length and token type.
+    public final static int RESPONSE_TOKENS = -2;
 
     private JFrame frame;
     private JTabbedPane tabbedPane;
-    private ServerSocket serverSocket;
-    private Socket clientSocket;
-    private DataOutputStream out;
-    private DataInputStream in;
+    private Transport transport;
+    // Only the RequestWriter writes here.
+    private volatile DataOutputStream out;
+    private volatile DataInputStream in;
     private boolean opened;
     private Process colorServer;
     private Thread readingThread;
+    private RequestWriter requestWriter;
+    private BackgroundHighlighter backgroundHighlighter;
+    // texteditor.record=file records the traffic for colorserver.Replay.
+    private TrafficRecorder recorder;
 
     public DataOutputStream getOutStream() {
         return out;
     }
 
+    public RequestWriter getRequestWriter() {
+        return requestWriter;
+    }
+
+    public BackgroundHighlighter getBackgroundHighlighter() {
+        return backgroundHighlighter;
+    }
+
     public DataInputStream getInStream() {
         return in;
     }
@@ -37,10 +78,8 @@ public class TextEditor {
     private ArrayList<TextDocumentEditor> editors = new ArrayList<TextDocumentEditor>();
 
     private void sendCloseRequest() {
-        try {
-            out.writeInt(MESSAGE_CLOSE);
-        } catch (IOException | NullPointerException ex) {
-            System.out.println("Sending close message failed. " + ex.getMessage());
+        if (requestWriter != null) {
+            requestWriter.close();
         }
     }
 
@@ -51,20 +90,49 @@ public class TextEditor {
                 int bufferSize;
                 int start;
                 long revision;
+                long requestId;
+                String fileName;
                 try {
-                    // fileName is not used for now
-                    String fileName = in.readUTF();
+                    fileName = in.readUTF();
                     revision = in.readLong();
+                    requestId = in.readLong();
                     start = in.readInt();
                     bufferSize = in.readInt();
+                    if (bufferSize == RESPONSE_RETRY) {
+                        final int length = in.readInt();
+                        final int retryStart = start;
+                        final long retryRevision = revision;
+                        final String retryFileName = fileName;
+                        SwingUtilities.invokeLater(() -> {
+                            TextDocumentEditor editor = editorFor(retryFileName);
+                            if (editor != null)
+                                editor.retryLater(retryRevision, retryStart, length);
+                        });
+                        continue;
+                    }
+                    if (bufferSize == RESPONSE_TOKENS) {
+                        int spans = in.readInt();
+                        int[] lengths = new int[spans];
+                        byte[] types = new byte[spans];
+                        for (int i = 0; i < spans; ++i) {
+                            lengths[i] = in.readInt();
+                            types[i] = in.readByte();
+                        }
+                        int tokensLength = 0;
+                        for (int length : lengths)
+                            tokensLength += length;
+                        final int tokensLengthFinal = tokensLength;
+                        final String tokensFileName = fileName;
+                        final int tokensStart = start;
+                        final long tokensRevision = revision;
+                        final long tokensRequestId = requestId;
+                        SwingUtilities.invokeLater(() -> applyColors(tokensRequestId, tokensFileName, tokensRevision, tokensStart,
+                                tokensLengthFinal, editor -> editor.updateTokens(tokensRevision, tokensStart, lengths, types)));
+                        continue;
+                    }
                 } catch (IOException ex) {
                     System.out.println("Can't read the header, restart" + ex.getMessage());
-                    SwingUtilities.invokeLater(() -> {
-                        launchColorServer();
-                        startReadingMessages();
-                        if (!editors.isEmpty())
-                            editors.get(0).sendRequest();
-                    });
+                    restart();
                     return;
                 }
 
@@ -77,64 +145,169 @@ public class TextEditor {
                     }
                 } catch (IOException ex) {
                     System.out.println("Can't read buffer, restart: " + ex.getMessage());
-                    SwingUtilities.invokeLater(() -> {
-                        launchColorServer();
-                        startReadingMessages();
-                        if (!editors.isEmpty())
-                            editors.get(0).sendRequest();
-                    });
+                    restart();
                     return;
                 }
 
+                final String fileNameFinal = fileName;
                 final int startFinal = start;
                 final long revisionFinal = revision;
-                SwingUtilities.invokeLater(() -> {
-                    if (!editors.isEmpty())
-                        editors.get(0).updateColors(revisionFinal, startFinal, buffer);
-                });
+                final long requestIdFinal = requestId;
+                SwingUtilities.invokeLater(() -> applyColors(requestIdFinal, fileNameFinal, revisionFinal, startFinal,
+                        buffer.length, editor -> editor.updateColors(revisionFinal, startFinal, buffer)));
             }
         }
     }
 
+    // texteditor.highlighter picks the ColorServer engine, native libColor by default.
+    private String colorServerCommand() {
+        String highlighter = System.getProperty("texteditor.highlighter");
+        if (highlighter == null) {
+            return "java -jar ../ColorServer/dist/ColorServer.jar " + transport.serverArguments();
+        }
+        String options = "";
+        if (highlighter.equals("vector")) {
+            options = "--add-modules jdk.incubator.vector ";
+        } else if (highlighter.equals("foreign")) {
+            // java.lang.foreign is a preview API on JDK 21, harmless on 22.
+            options = "--enable-preview --enable-native-access=ALL-UNNAMED ";
+        }
+        return "java " + options + "-jar ../ColorServer/dist/ColorServer.jar"
+                + " --highlighter=" + highlighter + " " + transport.serverArguments();
+    }
+
+    // texteditor.transport: tcp (default), unix for a Unix domain socket,
+    // shm for shared memory rings, embedded to run the server in this JVM or
+    // shared to use the --listen server at texteditor.server (host:port).
+    private static Transport createTransport() throws IOException {
+        String name = System.getProperty("texteditor.transport", "tcp");
+        if (name.equals("shared")) {
+            return new SharedServerTransport(System.getProperty("texteditor.server", "127.0.0.1:7777"));
+        }
+        if (name.equals("embedded")) {
+            return new EmbeddedTransport();
+        }
+        if (name.equals("shm")) {
+            return new SharedMemoryTransport();
+        }
+        if (name.equals("unix")) {
+            try {
+                return new UnixSocketTransport();
+            } catch (IOException | UnsupportedOperationException ex) {
+                System.out.println("Unix domain sockets unavailable, using TCP. ex = " + ex.getMessage());
+            }
+        }
+        return new TcpTransport();
+    }
+
     void launchColorServer() {
         if (!opened) {
             return;
         }
-        try {
-            if (colorServer != null && colorServer.isAlive())
-                colorServer.destroyForcibly();
-            colorServer = Runtime.getRuntime().exec(
-                    "java -jar ../ColorServer/dist/ColorServer.jar "
-                            + serverSocket.getLocalPort());
-        } catch (IOException ex) {
-            System.out.println("Failed to run the server, no colors. ex = " + ex.getMessage());
+        if (transport.needsServerProcess()) {
+            try {
+                if (colorServer != null && colorServer.isAlive())
+                    colorServer.destroyForcibly();
+                colorServer = Runtime.getRuntime().exec(colorServerCommand());
+            } catch (IOException ex) {
+                System.out.println("Failed to run the server, no colors. ex = " + ex.getMessage());
+            }
         }
+        // Requests wait in the RequestWriter until the new server is there.
+        out = null;
+        in = null;
         try {
-            if (clientSocket != null) {
-                clientSocket.close();
+            transport.accept();
+            OutputStream toServer = transport.getOutputStream();
+            InputStream fromServer = transport.getInputStream();
+            // Every transport greets. Before the recorder, Replay does its own handshake.
+            readHello(new DataInputStream(fromServer));
+            if (recorder != null) {
+                recorder.connected();
+                toServer = recorder.wrapOutput(toServer);
+                // Buffered, so a record holds whatever arrived instead of a few bytes each.
+                fromServer = new BufferedInputStream(recorder.wrapInput(fromServer));
             }
-            clientSocket = serverSocket.accept();
-            out = new DataOutputStream(clientSocket.getOutputStream());
-            in = new DataInputStream(clientSocket.getInputStream());
+            in = new DataInputStream(fromServer);
+            out = new DataOutputStream(new BufferedOutputStream(toServer));
+            requestWriter.connected();
         } catch (IOException ex) {
             System.out.println("Failed to connect, no colors. ex = " + ex.getMessage());
         }
     }
 
+    // Gives the server as long to greet as the transport gives it to connect,
+    // a server that connected and went quiet would hang this thread for good.
+    private void readHello(DataInputStream in) throws IOException {
+        FutureTask<Integer> hello = new FutureTask<>(() -> {
+            if (in.readInt() != HELLO) {
+                throw new IOException("Not a ColorServer");
+            }
+            return in.readInt();
+        });
+        Thread reading = new Thread(hello, "ColorServer hello");
+        reading.setDaemon(true);
+        reading.start();
+        int version;
+        try {
+            version = hello.get(Transport.CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            // Also ends the reading thread.
+            transport.disconnect();
+            throw new IOException("ColorServer did not greet");
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the ColorServer");
+        }
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("ColorServer speaks protocol " + version + ", not " + PROTOCOL_VERSION);
+        }
+    }
+
+    // Starts the ColorServer and waits for it on a thread of its own, so the
+    // editor takes keystrokes from the start.
+    public void connectInBackground() {
+        Thread connecting = new Thread(() -> {
+            launchColorServer();
+            startReadingMessages();
+        }, "ColorServer connect");
+        connecting.setDaemon(true);
+        connecting.start();
+    }
+
+    // The connection broke: a new server, then everything again. Runs on
+    // the reading thread, the Swing thread keeps going meanwhile.
+    private void restart() {
+        launchColorServer();
+        startReadingMessages();
+        SwingUtilities.invokeLater(() -> {
+            for (TextDocumentEditor editor : editors)
+                editor.resendAfterRestart();
+        });
+    }
+
     public void disconnect() {
         opened = false;
         sendCloseRequest();
 
         try {
-            in.close();
-            out.close();
-            clientSocket.close();
-            serverSocket.close();
+            // Not there yet when the server never connected.
+            if (in != null)
+                in.close();
+            if (out != null)
+                out.close();
+            transport.close();
             if (readingThread != null)
                 readingThread.join();
         } catch (IOException | NullPointerException | InterruptedException ex) {
             System.out.println(ex.getMessage());
         }
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
     }
 
     public TextEditor() {
@@ -143,6 +316,7 @@ public class TextEditor {
         frame.setSize(800, 600);
         frame.setVisible(true);
         frame.add(tabbedPane);
+        tabbedPane.addChangeListener(e -> updateTabPriorities());
 
         frame.addWindowListener(new WindowListener() {
             @Override public void windowClosing(WindowEvent e) {
@@ -160,8 +334,19 @@ public class TextEditor {
 
     public void createServerSocket() {
         opened = true;
+        requestWriter = new RequestWriter(this);
+        requestWriter.start();
+        backgroundHighlighter = new BackgroundHighlighter(this);
+        String recording = System.getProperty("texteditor.record");
+        if (recording != null) {
+            try {
+                recorder = new TrafficRecorder(Paths.get(recording));
+            } catch (IOException ex) {
+                System.out.println("Can't record to " + recording + ", ex = " + ex.getMessage());
+            }
+        }
         try {
-            serverSocket = new ServerSocket(0);
+            transport = createTransport();
         } catch (IOException ex) {
             System.out.println("Can't open socket, exiting: " + ex.getMessage());
         }
@@ -172,15 +357,26 @@ public class TextEditor {
 
         textEditor.createServerSocket();
 
-        textEditor.launchColorServer();
-
-        textEditor.startReadingMessages();
+        if (args.length == 0) {
+            textEditor.addDocumentEditor(new TextDocumentEditor(textEditor, "path"));
+        }
+        for (String path : args) {
+            TextDocumentEditor documentEditor = new TextDocumentEditor(textEditor, path);
+            try {
+                documentEditor.openFile(Paths.get(path));
+            } catch (IOException ex) {
+                System.out.println("Can't open " + path + ", ex = " + ex.getMessage());
+            }
+            textEditor.addDocumentEditor(documentEditor);
+        }
 
-        textEditor.addDocumentEditor(new TextDocumentEditor(textEditor, "path"));
+        // Edits are taken meanwhile, their requests go out once connected.
+        textEditor.connectInBackground();
     }
 
     public void startReadingMessages() {
-        if (!opened) {
+        // Not connected, a restart comes through here again.
+        if (!opened || in == null) {
             return;
         }
         readingThread = new Thread(new ReadingRunnable());
@@ -191,21 +387,65 @@ public class TextEditor {
         return !editors.isEmpty();
     }
 
+    // Must be called in Swing thread.
+    private void applyColors(long requestId, String path, long revision, int start, int length,
+            Consumer<TextDocumentEditor> update) {
+        TextDocumentEditor editor = editorFor(path);
+        if (editor == null) {
+            return;
+        }
+        Tracing.ColorsApplied event = new Tracing.ColorsApplied();
+        event.begin();
+        event.outdated = revision < editor.getRevision();
+        update.accept(editor);
+        event.requestId = requestId;
+        event.path = path;
+        event.revision = revision;
+        event.start = start;
+        event.length = length;
+        event.commit();
+    }
+
+    // Answers name their document by path. Must be called in Swing thread.
+    private TextDocumentEditor editorFor(String path) {
+        for (TextDocumentEditor editor : editors) {
+            if (editor.getFilePath().equals(path)) {
+                return editor;
+            }
+        }
+        return null;
+    }
+
+    // Must be called in Swing thread.
+    public ArrayList<TextDocumentEditor> getEditors() {
+        return editors;
+    }
+
     public void addDocumentEditor(TextDocumentEditor documentEditor) {
         editors.add(documentEditor);
         tabbedPane.add(documentEditor.scrollPane());
+        updateTabPriorities();
     }
 
     public void removeDocumentEditor(TextDocumentEditor documentEditor) {
         tabbedPane.remove(documentEditor.scrollPane());
         editors.remove(documentEditor);
+        requestWriter.remove(documentEditor);
+        updateTabPriorities();
+    }
+
+    // The selected tab is colored first, the hidden ones wait for idle time.
+    private void updateTabPriorities() {
+        for (TextDocumentEditor editor : editors) {
+            editor.setActive(tabbedPane.getSelectedComponent() == editor.scrollPane());
+        }
     }
 
     public boolean isConnectionClosed() {
-        return clientSocket == null || clientSocket.isClosed();
+        return transport == null || transport.isConnectionClosed();
     }
 
     public boolean hasColorServer() {
-        return colorServer != null;
+        return colorServer != null || (transport != null && !transport.needsServerProcess());
     }
 }
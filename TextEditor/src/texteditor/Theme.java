@@ -0,0 +1,57 @@
+package texteditor;
+
+import java.awt.Color;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+
+/**
+ * Colors for the token types the ColorServer sends in token format. The
+ * attribute sets are built once per type, so switching themes repaints
+ * without asking the server again.
+ */
+public class Theme {
+    public static final int TOKEN_TEXT = 0;
+    public static final int TOKEN_NUMBER = 1;
+    public static final int TOKEN_WHITESPACE = 2;
+
+    // Character attribute holding the token type, kept so a new theme can recolor.
+    public static final Object TOKEN_TYPE = new Object() {
+        @Override
+        public String toString() {
+            return "token type";
+        }
+    };
+
+    // The colors the engines use themselves.
+    public static final Theme LIGHT = new Theme(Color.BLACK, Color.BLUE, Color.WHITE);
+    public static final Theme DARK = new Theme(Color.LIGHT_GRAY, Color.ORANGE, Color.DARK_GRAY);
+
+    private final Color[] colors;
+    private final AttributeSet[] attributes;
+
+    public Theme(Color text, Color number, Color whitespace) {
+        colors = new Color[] { text, number, whitespace };
+        attributes = new AttributeSet[colors.length];
+        for (int type = 0; type < colors.length; ++type) {
+            SimpleAttributeSet set = new SimpleAttributeSet();
+            StyleConstants.setForeground(set, colors[type]);
+            set.addAttribute(TOKEN_TYPE, type);
+            attributes[type] = set;
+        }
+    }
+
+    // texteditor.theme: light (default) or dark.
+    public static Theme named(String name) {
+        return "dark".equals(name) ? DARK : LIGHT;
+    }
+
+    // Unknown types from a newer server look like plain text.
+    public Color color(int type) {
+        return colors[type >= 0 && type < colors.length ? type : TOKEN_TEXT];
+    }
+
+    public AttributeSet attributes(int type) {
+        return attributes[type >= 0 && type < attributes.length ? type : TOKEN_TEXT];
+    }
+}
@@ -0,0 +1,79 @@
+package texteditor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events for the editor's part of a request. An edit and
+ * its colors share path and revision, the RequestWriter's requestId is
+ * sent with MESSAGE_TRACE, shows up on the ColorServer's events too and
+ * comes back with the answers.
+ * Enable with -XX:StartFlightRecording.
+ */
+public final class Tracing {
+    private Tracing() {
+    }
+
+    @Name("texteditor.Edit")
+    @Label("Edit")
+    @Category({ "TextEditor" })
+    public static class Edit extends Event {
+        @Label("Path")
+        String path;
+        @Label("Revision")
+        long revision;
+        @Label("Offset")
+        int offset;
+        @Label("Length")
+        int length;
+    }
+
+    // The ranges handed to the RequestWriter on the Swing thread.
+    @Name("texteditor.RequestQueued")
+    @Label("Request Queued")
+    @Category({ "TextEditor" })
+    public static class RequestQueued extends Event {
+        @Label("Path")
+        String path;
+        @Label("Revision")
+        long revision;
+        @Label("Ranges")
+        int ranges;
+        @Label("Background")
+        boolean background;
+    }
+
+    @Name("texteditor.RequestSent")
+    @Label("Request Sent")
+    @Category({ "TextEditor" })
+    public static class RequestSent extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Path")
+        String path;
+        @Label("Revision")
+        long revision;
+        @Label("Priority")
+        int priority;
+    }
+
+    @Name("texteditor.ColorsApplied")
+    @Label("Colors Applied")
+    @Category({ "TextEditor" })
+    public static class ColorsApplied extends Event {
+        @Label("Request Id")
+        long requestId;
+        @Label("Path")
+        String path;
+        @Label("Revision")
+        long revision;
+        @Label("Start")
+        int start;
+        @Label("Length")
+        int length;
+        @Label("Outdated")
+        boolean outdated;
+    }
+}
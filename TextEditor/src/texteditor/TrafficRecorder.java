@@ -0,0 +1,107 @@
+package texteditor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records the byte streams between the editor and the ColorServer for
+ * colorserver.Replay. The file starts with MAGIC and VERSION, then one
+ * record per write or read: kind (byte), nanoseconds since the recording
+ * started (long), length (int) and the bytes. CONNECT records have no bytes
+ * and mark a new connection after a server restart.
+ */
+public class TrafficRecorder {
+    public static final int MAGIC = 0x434F4C52;
+    // 2: the recorded answers carry request ids, protocol 2.
+    public static final int VERSION = 2;
+    public static final int TO_SERVER = 0;
+    public static final int FROM_SERVER = 1;
+    public static final int CONNECT = 2;
+
+    private final DataOutputStream file;
+    private final long started = System.nanoTime();
+    private boolean closed;
+
+    public TrafficRecorder(Path path) throws IOException {
+        file = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+    }
+
+    public void connected() {
+        record(CONNECT, new byte[0], 0, 0);
+    }
+
+    public OutputStream wrapOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                record(TO_SERVER, new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                record(TO_SERVER, b, off, len);
+            }
+        };
+    }
+
+    public InputStream wrapInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    record(FROM_SERVER, new byte[] { (byte) b }, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = in.read(b, off, len);
+                if (count > 0) {
+                    record(FROM_SERVER, b, off, count);
+                }
+                return count;
+            }
+        };
+    }
+
+    // A broken recording must not break the editor, it stops recording instead.
+    private synchronized void record(int kind, byte[] b, int off, int len) {
+        if (closed) {
+            return;
+        }
+        try {
+            file.writeByte(kind);
+            file.writeLong(System.nanoTime() - started);
+            file.writeInt(len);
+            file.write(b, off, len);
+        } catch (IOException ex) {
+            System.out.println("Recording failed, stopped. ex = " + ex.getMessage());
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            file.close();
+        } catch (IOException ex) {
+            System.out.println("Closing the recording failed. ex = " + ex.getMessage());
+        }
+    }
+}
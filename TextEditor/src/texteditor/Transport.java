@@ -0,0 +1,38 @@
+package texteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Channel between the editor and its ColorServer. The editor listens, the
+ * server connects (except for a shared server); one connection is active
+ * at a time. Either way the server writes HELLO and its protocol version
+ * first.
+ */
+public interface Transport {
+    // A server that has not connected, or not greeted, by then failed to start.
+    long CONNECT_TIMEOUT_MILLIS = 60000;
+
+    // ColorServer command line arguments telling it where to connect.
+    String serverArguments();
+
+    // False when the ColorServer lives in this JVM or is already running elsewhere.
+    boolean needsServerProcess();
+
+    // Blocks until the ColorServer is connected, replaces the previous
+    // connection. Fails after CONNECT_TIMEOUT_MILLIS.
+    void accept() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnectionClosed();
+
+    // Drops the current connection, reads blocked on it fail. The next accept
+    // connects again.
+    void disconnect() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,92 @@
+package texteditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unix domain socket in a private temp directory, no TCP stack and no open
+ * port. The server is told the socket path.
+ */
+public class UnixSocketTransport implements Transport {
+    private final Path directory;
+    private final Path socketPath;
+    private final ServerSocketChannel serverChannel;
+    private SocketChannel clientChannel;
+
+    // Throws UnsupportedOperationException where AF_UNIX is not available.
+    public UnixSocketTransport() throws IOException {
+        directory = Files.createTempDirectory("colorserver");
+        socketPath = directory.resolve("socket");
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+        // Unix domain channels have no accept timeout, accept waits in a selector instead.
+        serverChannel.configureBlocking(false);
+    }
+
+    @Override
+    public String serverArguments() {
+        return "--transport=unix " + socketPath.toAbsolutePath();
+    }
+
+    @Override
+    public boolean needsServerProcess() {
+        return true;
+    }
+
+    @Override
+    public void accept() throws IOException {
+        disconnect();
+        try (Selector selector = Selector.open()) {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            if (selector.select(CONNECT_TIMEOUT_MILLIS) == 0) {
+                throw new SocketTimeoutException("ColorServer did not connect");
+            }
+        }
+        // Blocking, whatever the server channel is.
+        clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            throw new IOException("ColorServer did not connect");
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return Channels.newInputStream(clientChannel);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return Channels.newOutputStream(clientChannel);
+    }
+
+    @Override
+    public boolean isConnectionClosed() {
+        return clientChannel == null || !clientChannel.isOpen();
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        if (clientChannel != null) {
+            clientChannel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        disconnect();
+        serverChannel.close();
+        Files.deleteIfExists(socketPath);
+        Files.deleteIfExists(directory);
+    }
+}
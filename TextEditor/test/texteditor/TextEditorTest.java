@@ -1,12 +1,26 @@
 package texteditor;
 
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.JTextPane;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.GapContent;
+import javax.swing.text.Position;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -314,6 +328,167 @@ public class TextEditorTest {
         }
     }
 
+    @Test
+    public void test017MappedContentMatchesGapContent() throws IOException, BadLocationException {
+        Path file = Files.createTempFile("texteditor", ".txt");
+        try {
+            Files.write(file, "0123456789abcdefghij".getBytes(StandardCharsets.ISO_8859_1));
+            MappedContent mapped = new MappedContent(file);
+            GapContent gap = new GapContent();
+            mapped.insertMapped(0, 0, 20);
+            gap.insertString(0, "0123456789abcdefghij");
+            ArrayList<Position> mappedPositions = new ArrayList<Position>();
+            ArrayList<Position> gapPositions = new ArrayList<Position>();
+            Random random = new Random(1);
+            for (int i = 0; i < 10000; ++i) {
+                int length = gap.length();
+                int operation = random.nextInt(3);
+                if (operation == 0) {
+                    int where = random.nextInt(length);
+                    mapped.insertString(where, "x" + i);
+                    gap.insertString(where, "x" + i);
+                } else if (operation == 1) {
+                    int where = random.nextInt(length);
+                    int count = random.nextInt(Math.min(20, length - where));
+                    mapped.remove(where, count);
+                    gap.remove(where, count);
+                } else {
+                    int offset = random.nextInt(length + 1);
+                    mappedPositions.add(mapped.createPosition(offset));
+                    gapPositions.add(gap.createPosition(offset));
+                }
+            }
+
+            assertEquals(gap.getString(0, gap.length()), mapped.getString(0, mapped.length()));
+            for (int i = 0; i < gapPositions.size(); ++i) {
+                assertEquals(gapPositions.get(i).getOffset(), mappedPositions.get(i).getOffset());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void test018ColorOverlayRuns() {
+        ColorOverlay overlay = new ColorOverlay();
+        overlay.insert(0, 10);
+        byte[] colors = new byte[4 * 3];
+        for (int i = 0; i < 4; ++i) {
+            colors[i * 3 + 2] = (byte) 255;
+        }
+
+        overlay.set(2, colors);
+        assertEquals(3, overlay.runCount());
+        assertEquals(0x0000FF, overlay.colorAt(2));
+        assertEquals(6, overlay.runEnd(2));
+
+        overlay.insert(4, 3);
+        assertEquals(ColorOverlay.NONE, overlay.colorAt(4));
+        assertEquals(0x0000FF, overlay.colorAt(8));
+        assertEquals(13, overlay.length());
+
+        overlay.remove(4, 3);
+        assertEquals(3, overlay.runCount());
+        assertEquals(6, overlay.runEnd(2));
+
+        overlay.clear(0, 10);
+        assertEquals(1, overlay.runCount());
+    }
+
+    @Test
+    public void test019ColorOverlayTokens() {
+        ColorOverlay overlay = new ColorOverlay();
+        overlay.insert(0, 10);
+
+        // Equal neighbours merge, spans past the end are cut off.
+        overlay.setTokens(2, new int[] { 2, 1, 3, 20 }, new byte[] { Theme.TOKEN_TEXT,
+                Theme.TOKEN_TEXT, Theme.TOKEN_NUMBER, Theme.TOKEN_WHITESPACE });
+        assertEquals(4, overlay.runCount());
+        assertEquals(ColorOverlay.TOKEN | Theme.TOKEN_TEXT, overlay.colorAt(2));
+        assertEquals(5, overlay.runEnd(2));
+        assertEquals(ColorOverlay.TOKEN | Theme.TOKEN_NUMBER, overlay.colorAt(5));
+        assertEquals(ColorOverlay.TOKEN | Theme.TOKEN_WHITESPACE, overlay.colorAt(9));
+        assertEquals(10, overlay.runEnd(9));
+    }
+
+    @Test
+    public void test020EditHistory() {
+        EditHistory history = new EditHistory();
+        history.insert(1, 4, 2);
+        history.remove(2, 10, 3);
+
+        // An answer for [2, 14) at revision 0 is cut by both edits.
+        ArrayList<int[]> pieces = history.map(0, 2, 14);
+        assertEquals(3, pieces.size());
+        assertArrayEquals(new int[] { 0, 2, 2 }, pieces.get(0));
+        assertArrayEquals(new int[] { 2, 6, 6 }, pieces.get(1));
+        assertArrayEquals(new int[] { 9, 12, 10 }, pieces.get(2));
+        // Only the remove came after revision 1.
+        pieces = history.map(1, 0, 4);
+        assertEquals(1, pieces.size());
+        assertArrayEquals(new int[] { 0, 4, 0 }, pieces.get(0));
+        assertEquals(3, history.map(2, 3, 7).get(0)[2]);
+    }
+
+    @Test
+    public void test021MappedContentDecodesUtf8() throws IOException, BadLocationException {
+        Path file = Files.createTempFile("texteditor", ".txt");
+        try {
+            // Long enough to span several checkpoints, with two, three and
+            // four byte sequences and malformed bytes mixed in.
+            String[] parts = { "abc", "\u00e9", "\u20ac", "\ud83d\ude00", "\n" };
+            byte[][] malformed = { { (byte) 0xFF }, { (byte) 0xE2, (byte) 0x82 },
+                    { (byte) 0xED, (byte) 0xA0, (byte) 0x80 } };
+            Random random = new Random(1);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int i = 0; i < 20000; ++i) {
+                if (random.nextInt(100) == 0) {
+                    bytes.write(malformed[random.nextInt(malformed.length)]);
+                } else {
+                    bytes.write(parts[random.nextInt(parts.length)].getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            Files.write(file, bytes.toByteArray());
+            String expected = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+
+            MappedContent mapped = new MappedContent(file);
+            assertEquals(expected.length(), mapped.fileLength());
+            mapped.insertMapped(0, 0, mapped.fileLength());
+            assertEquals(expected + "\n", mapped.getString(0, mapped.length()));
+            for (int i = 0; i < 1000; ++i) {
+                int where = random.nextInt(expected.length());
+                int length = random.nextInt(Math.min(10000, expected.length() - where) + 1);
+                assertEquals(expected.substring(where, where + length), mapped.getString(where, length));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void test022LargeFileViewRoundTrip() throws IOException, BadLocationException {
+        Path file = Files.createTempFile("texteditor", ".txt");
+        try {
+            Files.write(file, "int a;\n\tb = \"\u00e9t\u00e9\";\n\n  \tc\td\n".getBytes(StandardCharsets.UTF_8));
+            JTextPane pane = new JTextPane();
+            pane.setEditorKit(new HighlightEditorKit(true, true));
+            LargeFileDocument document = new LargeFileDocument(file);
+            pane.setDocument(document);
+            document.load();
+            pane.setSize(pane.getPreferredSize());
+
+            // One view for the whole document, not one per line.
+            assertTrue(pane.getUI().getRootView(pane).getView(0) instanceof LargeFileView);
+            assertEquals(0, pane.getUI().getRootView(pane).getView(0).getViewCount());
+            for (int i = 0; i <= document.getLength(); ++i) {
+                Rectangle r = pane.modelToView2D(i).getBounds();
+                assertEquals(i, pane.viewToModel2D(new Point(r.x, r.y + r.height / 2)));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
     @Test
     public void test0Init() {
         assertTrue(textEditor.isConnectionClosed());
@@ -473,4 +648,89 @@ public class TextEditorTest {
             assertTrue(colors.get(i * 3) == 0 && colors.get(i * 3 + 1) == 0 && colors.get(i * 3 + 2) == 0);
         }
     }
+
+    @Test
+    public void test8EmbeddedColors() {
+        textEditor.disconnect();
+        System.setProperty("texteditor.transport", "embedded");
+        textEditor.createServerSocket();
+        System.clearProperty("texteditor.transport");
+        textEditor.launchColorServer();
+        textEditor.startReadingMessages();
+        assertFalse(textEditor.isConnectionClosed());
+        JUnitDocumentEditor documentEditor = new JUnitDocumentEditor(textEditor, "path");
+        textEditor.addDocumentEditor(documentEditor);
+
+        documentEditor.textPane().setText("12345abcde");
+
+        boolean colorsReceived = waitForAllMessages(documentEditor, 10);
+        Vector<Byte> colors = documentEditor.getLastColors();
+        textEditor.removeDocumentEditor(documentEditor);
+        assertTrue(colorsReceived);
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(colors.get(i * 3) == 0 && colors.get(i * 3 + 1) == 0 && (colors.get(i * 3 + 2) & 0xFF) == 255);
+        }
+    }
+
+    @Test
+    public void test9DeltaProtocolColors() {
+        textEditor.disconnect();
+        System.setProperty("texteditor.transport", "embedded");
+        System.setProperty("texteditor.protocol", "delta");
+        textEditor.createServerSocket();
+        System.clearProperty("texteditor.transport");
+        textEditor.launchColorServer();
+        textEditor.startReadingMessages();
+        JUnitDocumentEditor documentEditor = new JUnitDocumentEditor(textEditor, "path");
+        System.clearProperty("texteditor.protocol");
+        textEditor.addDocumentEditor(documentEditor);
+
+        documentEditor.textPane().setText("abcde");
+        try {
+            documentEditor.textPane().getDocument().insertString(2, "123", null);
+        } catch (BadLocationException ex) {
+            fail(ex.getMessage());
+        }
+
+        boolean colorsReceived = waitForAllMessages(documentEditor, 10);
+        Vector<Byte> colors = documentEditor.getLastColors();
+        textEditor.removeDocumentEditor(documentEditor);
+        assertTrue(colorsReceived);
+        for (int i = 2; i < 5; ++i) {
+            assertTrue(colors.get(i * 3) == 0 && colors.get(i * 3 + 1) == 0 && (colors.get(i * 3 + 2) & 0xFF) == 255);
+        }
+        for (int i = 5; i < 8; ++i) {
+            assertTrue(colors.get(i * 3) == 0 && colors.get(i * 3 + 1) == 0 && colors.get(i * 3 + 2) == 0);
+        }
+    }
+
+    @Test
+    public void test9TokenFormatTheme() {
+        textEditor.disconnect();
+        System.setProperty("texteditor.transport", "embedded");
+        System.setProperty("texteditor.colors", "tokens");
+        textEditor.createServerSocket();
+        System.clearProperty("texteditor.transport");
+        System.clearProperty("texteditor.colors");
+        textEditor.launchColorServer();
+        textEditor.startReadingMessages();
+        JUnitDocumentEditor documentEditor = new JUnitDocumentEditor(textEditor, "path");
+        textEditor.addDocumentEditor(documentEditor);
+
+        documentEditor.textPane().setText("ab 12");
+
+        boolean colorsReceived = waitForAllMessages(documentEditor, 10);
+        StyledDocument document = documentEditor.textPane().getStyledDocument();
+        Color before = StyleConstants.getForeground(document.getCharacterElement(3).getAttributes());
+        documentEditor.setTheme(Theme.DARK);
+        Color after = StyleConstants.getForeground(document.getCharacterElement(3).getAttributes());
+        Color text = StyleConstants.getForeground(document.getCharacterElement(0).getAttributes());
+        textEditor.removeDocumentEditor(documentEditor);
+        assertTrue(colorsReceived);
+        // Token answers never go through updateColors.
+        assertTrue(documentEditor.getLastColors().isEmpty());
+        assertEquals(Theme.LIGHT.color(Theme.TOKEN_NUMBER), before);
+        assertEquals(Theme.DARK.color(Theme.TOKEN_NUMBER), after);
+        assertEquals(Theme.DARK.color(Theme.TOKEN_TEXT), text);
+    }
 }